@@ -4,64 +4,146 @@ import android.util.Log;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class Gin {
 
     private volatile boolean isRunning = false;
-    private ServerSocket serverSocket;
-    private final Map<String, Map<String, Handler>> handlerMap = new HashMap<>();
-    private final Map<String, Map<String, Handler>> multiPathHandlerMap = new HashMap<>();
+    private ServerSocketChannel serverSocketChannel;
+    private boolean nio = false;
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+    private EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    private ExecutorService executor;
+    private boolean ownsExecutor = false;
+    private int rejectionPolicy = RejectionPolicies.serviceUnavailable;
+    private boolean keepAlive = true;
+    private int idleTimeout = 60_000;
+    private int maxRequestsPerConnection = 1000;
+    private int pipelineDepth = 1;
+    private final Router router = new Router();
 
     private String cacheDir;
+    private MultipartConfig multipartConfig = new MultipartConfig();
+    private FileCache fileCache;
+    private boolean autoETag = false;
+    private Compression compression;
     public Gin(String cacheDir) {
         this.cacheDir = cacheDir;
     }
 
-    public void getMultiple(String path, Handler handler) {
-        handleMultiFunc(Methods.get, path, handler);
+    public void setMultipartConfig(MultipartConfig multipartConfig) {
+        this.multipartConfig = multipartConfig;
     }
 
-    public void handleMultiFunc(String method, String path, Handler handler) {
-        Map<String, Handler> v = multiPathHandlerMap.get(path);
-        if (v == null) {
-            v = new HashMap<>();
-            multiPathHandlerMap.put(path, v);
-        }
-        v.put(method, handler);
+    /**
+     * Buffered 200 responses to GET and HEAD get an ETag computed from the body when the handler didn't set one,
+     * so a repeated request with If-None-Match is answered with 304 and no body.
+     */
+    public void setAutoETag(boolean autoETag) {
+        this.autoETag = autoETag;
     }
 
-    public void handleFunc(String method, String path, Handler handler) {
-        Map<String, Handler> v = handlerMap.get(path);
-        if (v == null) {
-            v = new HashMap<>();
-            handlerMap.put(path, v);
-        }
-        v.put(method, handler);
+    // compresses text responses for clients that accept it, null sends everything as is
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    // serveFile answers from this cache when set, null serves every file from disk
+    public void setFileCache(FileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    public void getMultiple(String path, Handler... handlers) {
+        handleMultiFunc(Methods.get, path, handlers);
+    }
+
+    // handles every path that starts with path, the longest matching prefix wins
+    public void handleMultiFunc(String method, String path, Handler... handlers) {
+        router.add(method, path, handlers, true);
+    }
+
+    /**
+     * path may contain :name segments, matching up to the next '/', and end with a *name segment matching the rest.
+     * Values are read with Context.param(name). Static segments take priority over parameters, parameters over *.
+     * Several handlers form a chain, see Context.next().
+     */
+    public void handleFunc(String method, String path, Handler... handlers) {
+        router.add(method, path, handlers, false);
+    }
+
+    // middleware for every route, run in the order added before group and route handlers
+    public void use(Handler... middleware) {
+        router.use(middleware);
+    }
+
+    public Group group(String prefix, Handler... middleware) {
+        return new Group(this, prefix, middleware);
+    }
+
+    // safe while serving, requests already routed finish with the old handler
+    public boolean removeFunc(String method, String path) {
+        return router.remove(method, path, false);
     }
 
-    public void get(String path, Handler handler) {
-        handleFunc(Methods.get, path, handler);
+    public boolean removeMultiFunc(String method, String path) {
+        return router.remove(method, path, true);
     }
 
-    public void post(String path, Handler handler) {
-        handleFunc(Methods.post, path, handler);
+    public void get(String path, Handler... handlers) {
+        handleFunc(Methods.get, path, handlers);
     }
 
-    public void put(String path, Handler handler) {
-        handleFunc(Methods.put, path, handler);
+    public void post(String path, Handler... handlers) {
+        handleFunc(Methods.post, path, handlers);
+    }
+
+    public void put(String path, Handler... handlers) {
+        handleFunc(Methods.put, path, handlers);
     }
 
     public void listen(int port) {
@@ -75,685 +157,4026 @@ public class Gin {
         }).start();
     }
 
+    /**
+     * Switch between the blocking thread-per-connection server and the NIO server,
+     * where a few event loops wait for request heads and only complete requests occupy a worker thread.
+     * In both modes a kept-alive connection waits for its next request on an event loop, not on a worker.
+     * Must be called before listen().
+     */
+    public void setNio(boolean nio) {
+        this.nio = nio;
+    }
+
+    public void setEventLoops(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("event loops must be positive: " + n);
+        }
+        this.eventLoopCount = n;
+    }
+
+    /**
+     * Executor that runs the handlers, see {@link Workers} for bounded and virtual-thread variants.
+     * When a task is rejected the connection is treated according to the rejection policy.
+     * Defaults to {@link Workers#cached} with {@link Workers#defaultMaxThreads}, owned and shut down by this instance.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        this.ownsExecutor = false;
+    }
+
+    public void setRejectionPolicy(int policy) {
+        this.rejectionPolicy = policy;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    // milliseconds a persistent connection may wait for its next request
+    public void setIdleTimeout(int millis) {
+        this.idleTimeout = millis;
+    }
+
+    public void setMaxRequestsPerConnection(int n) {
+        this.maxRequestsPerConnection = n;
+    }
+
+    /**
+     * Up to n pipelined GET/HEAD/OPTIONS requests already buffered on a connection are handled concurrently,
+     * their responses are still written in request order. 1 handles pipelined requests one by one.
+     */
+    public void setPipelineDepth(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("pipeline depth must be positive: " + n);
+        }
+        this.pipelineDepth = n;
+    }
+
     public void run(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
+        if (executor == null || ownsExecutor && executor.isShutdown()) {
+            executor = Workers.cached(Workers.defaultMaxThreads);
+            ownsExecutor = true;
+        }
+        if (nio) {
+            runNio(port);
+            return;
+        }
+        // accepted through a channel so a kept-alive connection can wait for its next request on an event loop
+        // and responses can be written with gathering writes
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(port));
         isRunning = true;
+        if (keepAlive) {
+            startEventLoops();
+        }
         while (isRunning) {
-            Socket socket = serverSocket.accept();
-            new Thread(() -> {
-                serveHTTP(socket);
-            }).start();
+            Socket socket;
+            try {
+                socket = serverSocketChannel.accept().socket();
+            } catch (ClosedChannelException e) {
+                break;
+            }
+            dispatch(socket, new ConnectionInput(socket.getInputStream()), 0);
         }
     }
 
-    public void stop() throws IOException {
-        isRunning = false;
-        if (serverSocket != null) {
-            serverSocket.close();
+    private void dispatch(Socket socket, ConnectionInput input, int served) {
+        try {
+            executor.execute(() -> serveHTTP(socket, input, served));
+        } catch (RejectedExecutionException e) {
+            reject(socket, input, served);
         }
     }
 
-    private boolean containsMultiplePath(String path) {
-        for (Map.Entry<String, Map<String, Handler>> m : multiPathHandlerMap.entrySet()) {
-            if (path.startsWith(m.getKey())) {
-                return true;
+    private void reject(Socket socket, ConnectionInput input, int served) {
+        // only the accept thread of the blocking server serves new connections itself, when the caller is an event loop
+        // serving there would stall every connection of the loop
+        if (rejectionPolicy == RejectionPolicies.callerRuns && !nio && served == 0) {
+            serveOne(socket, input, served);
+            return;
+        }
+        try {
+            if (rejectionPolicy != RejectionPolicies.close) {
+                OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(serviceUnavailableResponse);
+                outputStream.flush();
             }
+            input.close();
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return false;
     }
 
-    private void serveHTTP(Socket socket) {
-        Context context = null;
+    // one request on the accept thread, answered with Connection: close so accepting resumes right after it
+    private void serveOne(Socket socket, ConnectionInput input, int served) {
+        Context context;
         try {
-            context = new Context(socket,cacheDir);
-            String path = context.request.path();
-            if (handlerMap.containsKey(path)) {
-                Map<String, Handler> m = handlerMap.get(path);
-                if (m != null) {
-                    Handler h = m.get(context.request.method);
-                    if (h != null) {
-                        h.handle(context);
-                    } else {
-                        context.string(Status.methodNotAllowed, Status.getMessage(Status.methodNotAllowed));
-                    }
-                } else {
-                    context.notFound();
-                }
-            } else if (containsMultiplePath(path)) {
-                for (Map.Entry<String, Map<String, Handler>> entry : multiPathHandlerMap.entrySet()) {
-                    if (!path.startsWith(entry.getKey())) {
-                        continue;
-                    }
-                    // found it
-                    Map<String, Handler> m = entry.getValue();
-                    if (!m.containsKey(context.request.method)) {
-                        context.string(Status.methodNotAllowed, Status.getMessage(Status.methodNotAllowed));
-                        break;
-                    }
-
-                    // multiFunc
-                    Handler handler = m.get(context.request.method);
-                    if (handler != null) {
-                        handler.handle(context);
-                    }
-                    break;
-                }
-            } else {
-                context.notFound();
-            }
+            socket.setSoTimeout(idleTimeout);
+            context = new Context(socket, input, this);
+        } catch (EOFException | SocketTimeoutException e) {
+            closeQuietly(input);
+            closeQuietly(socket);
+            return;
         } catch (Exception e) {
             e.printStackTrace();
-            if (context != null) {
-                try {
-                    context.response.internalServerError(e.getMessage());
-                } catch (IOException ex) {
-                    e.printStackTrace();
-                }
-            }
+            closeQuietly(input);
+            closeQuietly(socket);
+            return;
+        }
+        context.broken = true;
+        serveRequest(context, served + 1);
+        try {
+            context.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+    }
+
+    private static final byte[] serviceUnavailableResponse = (Protocol.HTTP_1_1 + " " + Status.serviceUnavailable + " "
+        + Status.getMessage(Status.serviceUnavailable) + "\r\n" + Headers.contentLength + ": 0\r\nConnection: close\r\n\r\n").getBytes();
 
-        // close connection
-        if (context != null) {
+    private void runNio(int port) throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(port));
+        isRunning = true;
+        startEventLoops();
+        while (isRunning) {
+            SocketChannel channel;
             try {
-                context.response.flushData();
-                context.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                channel = serverSocketChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
             }
+            nextEventLoop().register(channel, 0);
         }
     }
 
+    private void startEventLoops() throws IOException {
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(this, i);
+            eventLoops[i].start();
+        }
+    }
 
-    // child classes
-    public static class Context {
-        public final Request request;
-        public final Response response;
+    private EventLoop nextEventLoop() {
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+    }
 
-        private final Socket socket;
-        private final InputStream inputStream;
-        private final OutputStream outputStream;
-        private boolean bodyReadStarted = false;
-        private long bodyReadN = 0; // bytes left to read
-        private String cacheDir;
-        public Context(Socket socket,String cacheDir) throws Exception {
-            this.cacheDir = cacheDir;
-            this.socket = socket;
-            this.inputStream = socket.getInputStream();
-            this.outputStream = socket.getOutputStream();
-            this.request = Request.readContext(this);
-            this.response = new Response(this);
+    public void stop() throws IOException {
+        isRunning = false;
+        if (serverSocketChannel != null) {
+            serverSocketChannel.close();
         }
-
-        public void close() throws IOException {
-            inputStream.close();
-            outputStream.flush();
-            outputStream.close();
-            socket.close();
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                loop.close();
+            }
         }
+        // the reference stays, the shut down executor rejects whatever is still submitted to it
+        if (executor != null && ownsExecutor) {
+            executor.shutdown();
+        }
+    }
 
-        public String readStringUntil(String sep, boolean excludeSep) throws IOException {
-            byte[] sepBytes = sep.getBytes("UTF-8");
-            ByteArrayOutputStream builder = new ByteArrayOutputStream();
-
-            readBytesUntil(builder, sep.getBytes("UTF-8"));
-            byte[] out = builder.toByteArray();
-
-            if (excludeSep) {
-                if (StrX.bytesEndsWith(out, sepBytes)) {
-                    out = Arrays.copyOf(out, out.length - sepBytes.length);
+    private void serveHTTP(Socket socket, ConnectionInput input, int served) {
+        try {
+            socket.setSoTimeout(idleTimeout);
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+        while (true) {
+            Context context;
+            try {
+                context = new Context(socket, input, this);
+            } catch (EOFException | SocketTimeoutException e) {
+                // client closed or idle connection
+                closeQuietly(input);
+                closeQuietly(socket);
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+                closeQuietly(input);
+                closeQuietly(socket);
+                return;
+            }
+            served++;
+            boolean reuse;
+            List<Context> batch = pipelineDepth > 1 ? readPipelined(context, socket, input, served) : null;
+            if (batch == null) {
+                reuse = serveRequest(context, served);
+            } else {
+                reuse = servePipelined(batch, socket, served);
+                served += batch.size() - 1;
+            }
+            if (!reuse) {
+                try {
+                    context.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            if (eventLoops != null) {
+                // nothing pipelined, wait for the next request on an event loop instead of holding a worker
+                try {
+                    if (input.available() == 0) {
+                        nextEventLoop().register(socket.getChannel(), served, input.release());
+                        return;
+                    }
+                } catch (IOException e) {
+                    closeQuietly(input);
+                    closeQuietly(socket);
+                    return;
                 }
             }
-            return new String(out, "UTF-8");
         }
+    }
 
-        private void readBytesUntil(OutputStream outputStream, byte[] sep) throws IOException {
-            byte[] window = new byte[sep.length];
-            int n = 0;
-            while (!StrX.bytesEquals(window, sep)) {
-                int vi = inputStream.read();
-                if (vi == -1) {
-                    break;
+    // parses the requests that are already buffered behind a safe one, null if there are none
+    private List<Context> readPipelined(Context first, Socket socket, ConnectionInput input, int served) {
+        // no more than the connection may still answer, the others would run without their responses being sent
+        int max = keepAlive ? Math.min(pipelineDepth, maxRequestsPerConnection - served + 1) : 1;
+        List<Context> batch = null;
+        Context last = first;
+        try {
+            while (last.pipelinable() && input.available() > 0 && (batch == null ? 1 : batch.size()) < max) {
+                last = new Context(socket, input, this);
+                if (batch == null) {
+                    batch = new ArrayList<>();
+                    batch.add(first);
                 }
-                byte v = (byte) vi;
-                outputStream.write(v);
+                batch.add(last);
+            }
+        } catch (Exception e) {
+            // answer what was parsed, the connection is closed afterwards
+            e.printStackTrace();
+            if (batch == null) {
+                first.broken = true;
+            } else {
+                batch.get(batch.size() - 1).broken = true;
+            }
+        }
+        return batch;
+    }
 
-                if (bodyReadStarted && bodyReadN > -1) {
-                    bodyReadN--;
-                    if (bodyReadN <= 0) {
-                        break;
-                    }
+    /**
+     * Safe requests of the batch run concurrently into their own buffers and are written in order with one flush.
+     * A trailing request that is not safe runs alone once the others are answered.
+     */
+    private boolean servePipelined(List<Context> batch, Socket socket, int served) {
+        Context tail = batch.get(batch.size() - 1);
+        int n = tail.pipelinable() ? batch.size() : batch.size() - 1;
+        List<Future<?>> futures = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Context context = batch.get(i);
+            context.served = served + i;
+            context.bufferOutput();
+            FutureTask<Void> task = new FutureTask<>(() -> handle(context), null);
+            if (i > 0) {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    task.run();
                 }
+            }
+            futures.add(task);
+        }
+        ((FutureTask<?>) futures.get(0)).run();
 
-                if (n < window.length) {
-                    window[n] = v;
-                    n++;
-                    continue;
-                }
-                for (int i = 0; i < window.length; i++) {
-                    if (i < window.length - 1) {
-                        window[i] = window[i + 1];
-                        continue;
-                    }
-                    window[i] = v;
-                }
+        boolean reuse = true;
+        try {
+            OutputStream outputStream = socket.getOutputStream();
+            for (int i = 0; i < n && reuse; i++) {
+                Context context = batch.get(i);
+                futures.get(i).get();
+                BufferOutputStream buffer = (BufferOutputStream) context.outputStream;
+                reuse = finish(context, served + i);
+                buffer.writeTo(outputStream);
+            }
+            outputStream.flush();
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            // handlers behind a failed write may still be running into their buffers
+            for (int i = 0; i < n; i++) {
+                awaitQuietly(futures.get(i));
+                batch.get(i).releaseBuffers();
             }
         }
+        if (reuse && n < batch.size()) {
+            return serveRequest(tail, served + n);
+        }
+        return reuse;
+    }
 
+    // returns whether the connection can be reused for another request
+    private boolean serveRequest(Context context, int served) {
+        context.served = served;
+        handle(context);
+        return finish(context, served);
+    }
 
-        public String requestURI() {
-            return request.requestURI;
+    private void handle(Context context) {
+        try {
+            if (Methods.options.equals(context.request.method) && "*".equals(context.request.requestURI)) {
+                context.response.headers.put(Headers.allow, Router.allMethods);
+                context.response.statusCode = Status.noContent;
+                return;
+            }
+            Handler[][] handlers = router.find(context.request.path(), context);
+            if (handlers == null) {
+                context.notFound();
+                return;
+            }
+            int i = Router.methodIndex(context.request.method);
+            Handler[] chain = i < 0 ? null : handlers[i];
+            if (chain == null && Methods.head.equals(context.request.method)) {
+                // the GET handler runs, the response drops what it writes
+                chain = handlers[Router.methodIndex(Methods.get)];
+            }
+            if (chain == null && Methods.options.equals(context.request.method)) {
+                context.response.headers.put(Headers.allow, Router.allow(handlers));
+                context.response.statusCode = Status.noContent;
+                return;
+            }
+            if (chain == null) {
+                context.response.headers.put(Headers.allow, Router.allow(handlers));
+                context.string(Status.methodNotAllowed, Status.getMessage(Status.methodNotAllowed));
+                return;
+            }
+            context.chain = chain;
+            context.next();
+        } catch (HttpException e) {
+            try {
+                context.response.error(e.status, e.getMessage());
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (context.response.committed) {
+                context.response.abandon();
+                return;
+            }
+            try {
+                context.response.internalServerError(e.getMessage());
+            } catch (IOException ex) {
+                e.printStackTrace();
+            }
         }
+    }
 
-        public void serveFile(String path) throws IOException {
-            response.serveFile(path);
+    private boolean finish(Context context, int served) {
+        context.request.release();
+        context.settleBody();
+        boolean reuse;
+        try {
+            Response response = context.response;
+            response.closeStream();
+            if (response.committed) {
+                reuse = response.keepAlive;
+            } else {
+                reuse = reusable(context, served);
+                response.setKeepAlive(reuse);
+                response.flushData();
+            }
+            context.outputStream.flush();
+            if (reuse) {
+                reuse = context.drainBody();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            context.response.release();
         }
+        return reuse;
+    }
 
-        public void string(int code, String s) throws IOException {
-            response.string(code, s);
-        }
+    private boolean reusable(Context context, int served) {
+        return keepAlive && isRunning && served < maxRequestsPerConnection && context.canKeepAlive();
+    }
 
-        public void html(int code, String s) throws IOException {
-            response.html(code, s);
+    // the result of a task another thread may be running, with its failure rethrown as it was thrown
+    static <T> T await(Future<T> task, String what) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for " + what);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
         }
+    }
 
-        public void html(int code, DSL.Element element) throws IOException {
-            html(code, element.marshal());
+    private static void awaitQuietly(Future<?> task) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                task.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
         }
-
-        public void notFound() throws IOException {
-            response.notFound();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
+    }
 
-        public void forbidden() throws IOException {
-            response.forbidden();
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+    }
 
-        public void badRequest(String s) throws IOException {
-            response.badRequest(s);
+    // child classes
+    private static class EventLoop implements Runnable {
+
+        private final Gin gin;
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<HeadBuffer> pending = new ConcurrentLinkedQueue<>();
+        private final List<SelectionKey> ready = new ArrayList<>();
+        private long lastSweep = System.currentTimeMillis();
+
+        // bytes of a request head read so far
+        private static class HeadBuffer {
+            final SocketChannel channel;
+            final int served;
+            ByteBuffer buffer;
+            int scanned = 0;
+            long lastActive = System.currentTimeMillis();
+
+            HeadBuffer(SocketChannel channel, int served, ByteBuffer buffer) {
+                this.channel = channel;
+                this.served = served;
+                this.buffer = buffer;
+            }
         }
 
-        public void header(String key, String value) {
-            response.headers.put(key, value);
+        EventLoop(Gin gin, int index) throws IOException {
+            this.gin = gin;
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "gin-event-loop-" + index);
+            this.thread.setDaemon(true);
         }
 
-        public void readBodyToFile(String dst) throws IOException {
-            new File(StrX.subBeforeLast(dst, "/", "/")).mkdirs();
-            File file = new File(dst);
-            if (file.exists()) {
-                file.delete();
-            }
-            file.createNewFile();
+        void start() {
+            thread.start();
+        }
 
-            FileOutputStream fileOutputStream = new FileOutputStream(file);
-            FileChannel fileChannel = fileOutputStream.getChannel();
-            ReadableByteChannel readableByteChannel = Channels.newChannel(inputStream);
-            fileChannel.transferFrom(readableByteChannel, 0, bodyReadN);
-            fileOutputStream.close();
+        // served is the number of requests the connection has already answered
+        void register(SocketChannel channel, int served) {
+            register(channel, served, BufferPool.heap.acquire(ConnectionInput.initialSize));
         }
 
-        public String bodyAsText() throws IOException {
-            return request.bodyAsText();
+        // buffer is empty and in write mode, it becomes the connection's input buffer once a head is complete
+        void register(SocketChannel channel, int served, ByteBuffer buffer) {
+            pending.add(new HeadBuffer(channel, served, buffer));
+            selector.wakeup();
         }
-    }
 
-    public static class Request {
-        public String method;
-        public String requestURI;
-        public String proto;
-        public Map<String, String> searchMap;
+        void close() throws IOException {
+            selector.close();
+        }
 
-        public Map<String, String> headers = new HashMap<>();
+        @Override
+        public void run() {
+            while (gin.isRunning) {
+                try {
+                    selector.select(1000);
+                    HeadBuffer head;
+                    while ((head = pending.poll()) != null) {
+                        try {
+                            head.channel.configureBlocking(false);
+                            head.channel.register(selector, SelectionKey.OP_READ, head);
+                        } catch (IOException e) {
+                            close(head);
+                        }
+                    }
 
-        private Context context;
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                    if (!ready.isEmpty()) {
+                        dispatch();
+                    }
+                    sweepIdle();
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
 
-        public Request() {
+        private void read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            HeadBuffer head = (HeadBuffer) key.attachment();
+            int n;
+            try {
+                n = channel.read(head.buffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                key.cancel();
+                close(head);
+                return;
+            }
+            head.lastActive = System.currentTimeMillis();
+            if (headComplete(head)) {
+                key.cancel();
+                ready.add(key);
+                return;
+            }
+            if (!head.buffer.hasRemaining()) {
+                if (head.buffer.capacity() >= RequestParser.maxHeadSize) {
+                    key.cancel();
+                    close(head);
+                    return;
+                }
+                ByteBuffer bigger = BufferPool.heap.acquire(Math.min(head.buffer.capacity() * 2, RequestParser.maxHeadSize));
+                head.buffer.flip();
+                bigger.put(head.buffer);
+                BufferPool.heap.release(head.buffer);
+                head.buffer = bigger;
+            }
+        }
 
+        private static boolean headComplete(HeadBuffer head) {
+            int end = head.buffer.position();
+            if (RequestParser.indexOfHeadEnd(head.buffer.array(), Math.max(head.scanned - 3, 0), end) >= 0) {
+                return true;
+            }
+            head.scanned = end;
+            return false;
         }
 
-        public String query(String key) {
-            if (searchMap == null) {
-                String search = StrX.subAfter(requestURI, "?", "");
-                searchMap = new HashMap<>();
-                if (!search.isEmpty()) {
-                    String[] ss = search.split("&");
-                    for (String s : ss) {
-                        String[] kv = s.split("=");
-                        if (kv.length != 2) {
-                            continue;
-                        }
-                        try {
-                            searchMap.put(kv[0], URLDecoder.decode(kv[1], "UTF-8"));
-                        } catch (UnsupportedEncodingException e) {
-                            e.printStackTrace();
-                        }
+        // hands complete heads to the workers; handlers read the body and write the response in blocking mode
+        private void dispatch() throws IOException {
+            // flush the cancelled keys so the channels may switch back to blocking mode
+            selector.selectNow();
+            for (SelectionKey key : ready) {
+                SocketChannel channel = (SocketChannel) key.channel();
+                HeadBuffer head = (HeadBuffer) key.attachment();
+                try {
+                    channel.configureBlocking(true);
+                    Socket socket = channel.socket();
+                    ConnectionInput input = new ConnectionInput(socket.getInputStream(), head.buffer);
+                    head.buffer = null;
+                    gin.dispatch(socket, input, head.served);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    close(head);
+                }
+            }
+            ready.clear();
+        }
+
+        // closes connections that sent nothing for longer than the idle timeout
+        private void sweepIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < 1000) {
+                return;
+            }
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                HeadBuffer head = (HeadBuffer) key.attachment();
+                if (key.isValid() && now - head.lastActive > gin.idleTimeout) {
+                    key.cancel();
+                    close(head);
+                }
+            }
+        }
+
+        private static void close(HeadBuffer head) {
+            closeQuietly(head.channel);
+            BufferPool.heap.release(head.buffer);
+            head.buffer = null;
+        }
+    }
+
+    /**
+     * Size-classed pool of heap buffers. Each thread keeps a few buffers of the small classes,
+     * the rest are shared up to a byte limit per class; sizes above the largest class are allocated and dropped
+     * as usual. Only the small classes are cached per thread, so the pool holds at most
+     * maxLocal * (4K + 16K) bytes per thread on top of the shared limits, however many workers there are.
+     * In debug mode every acquired buffer is tracked with the stack that took it, see leaks().
+     */
+    public static class BufferPool {
+        private static final int[] sizes = {4 << 10, 16 << 10, 64 << 10, 256 << 10, 1 << 20};
+        private static final int maxLocal = 4;
+        private static final int localClasses = 2; // 4K and 16K
+        private static final long maxSharedBytes = 16 << 20; // per class
+
+        public static final BufferPool heap = new BufferPool();
+        public static volatile boolean debug = false;
+
+        private final ConcurrentLinkedQueue<ByteBuffer>[] shared;
+        private final AtomicInteger[] sharedCount;
+        private final ThreadLocal<ByteBuffer[][]> local;
+        private final Map<ByteBuffer, Throwable> outstanding = Collections.synchronizedMap(new IdentityHashMap<>());
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private BufferPool() {
+            this.shared = new ConcurrentLinkedQueue[sizes.length];
+            this.sharedCount = new AtomicInteger[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                shared[i] = new ConcurrentLinkedQueue<>();
+                sharedCount[i] = new AtomicInteger();
+            }
+            this.local = ThreadLocal.withInitial(() -> new ByteBuffer[localClasses][]);
+        }
+
+        // a cleared buffer with at least size bytes of capacity
+        public ByteBuffer acquire(int size) {
+            int c = classOf(size);
+            if (c < 0) {
+                return allocate(size);
+            }
+            ByteBuffer buffer = null;
+            ByteBuffer[] stack = c < localClasses ? local.get()[c] : null;
+            if (stack != null) {
+                for (int i = stack.length - 1; i >= 0; i--) {
+                    if (stack[i] != null) {
+                        buffer = stack[i];
+                        stack[i] = null;
+                        break;
                     }
                 }
             }
-            String s = searchMap.get(key);
-            if (s == null) {
-                s = "";
+            if (buffer == null) {
+                buffer = shared[c].poll();
+                if (buffer != null) {
+                    sharedCount[c].decrementAndGet();
+                }
             }
-            return s;
+            if (buffer == null) {
+                buffer = allocate(sizes[c]);
+            }
+            buffer.clear();
+            if (debug) {
+                outstanding.put(buffer, new Throwable("buffer of " + buffer.capacity() + " bytes acquired here"));
+            }
+            return buffer;
         }
 
-        public long getContentLength() {
-            String s = headers.get(Headers.contentLength);
-            if (s == null || s.isEmpty()) {
-                return -1;
+        public void release(ByteBuffer buffer) {
+            if (buffer == null) {
+                return;
             }
-            try {
-                return Long.parseLong(s);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return -1;
+            if (debug && outstanding.remove(buffer) == null) {
+                new Throwable("released a buffer that is not outstanding").printStackTrace();
+                return;
+            }
+            int c = classOf(buffer.capacity());
+            if (c < 0 || sizes[c] != buffer.capacity() || buffer.isDirect()) {
+                return;
+            }
+            if (c < localClasses) {
+                ByteBuffer[][] stacks = local.get();
+                if (stacks[c] == null) {
+                    stacks[c] = new ByteBuffer[maxLocal];
+                }
+                ByteBuffer[] stack = stacks[c];
+                for (int i = 0; i < stack.length; i++) {
+                    if (stack[i] == null) {
+                        stack[i] = buffer;
+                        return;
+                    }
+                }
             }
+            if (sharedCount[c].incrementAndGet() * (long) sizes[c] > maxSharedBytes) {
+                sharedCount[c].decrementAndGet();
+                return;
+            }
+            shared[c].add(buffer);
         }
 
-        public String path() {
-            return StrX.subBeforeLast(requestURI, "?", requestURI);
+        // stacks of the buffers acquired but not released yet, only tracked in debug mode
+        public List<Throwable> leaks() {
+            synchronized (outstanding) {
+                return new ArrayList<>(outstanding.values());
+            }
         }
 
-        public static Request readContext(Context context) throws Exception {
-            Request req = new Request();
-            req.method = context.readStringUntil(" ", true);
-            if (!Methods.validate(req.method)) {
-                throw new Exception("invalid http method:" + req.method);
+        private ByteBuffer allocate(int size) {
+            return ByteBuffer.allocate(size);
+        }
+
+        private static int classOf(int size) {
+            for (int i = 0; i < sizes.length; i++) {
+                if (size <= sizes[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // counts the bytes written to it and keeps none, optionally with their checksum
+    static class DiscardingOutputStream extends BufferOutputStream {
+        long count = 0;
+        final CRC32 crc;
+
+        DiscardingOutputStream(boolean checksum) {
+            this.crc = checksum ? new CRC32() : null;
+        }
+
+        private static final byte[] empty = new byte[0];
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        // there is never a buffer to hand out, so nothing is taken from the pool
+        @Override
+        public byte[] array() {
+            return empty;
+        }
+
+        @Override
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(empty);
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+            if (crc != null) {
+                crc.update(b);
             }
-            req.requestURI = context.readStringUntil(" ", true);
-            req.proto = context.readStringUntil("\r\n", true);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+            if (crc != null) {
+                crc.update(b, off, len);
+            }
+        }
+
+        @Override
+        public void readFrom(InputStream in) throws IOException {
+            byte[] skip = new byte[4 << 10];
+            int n;
+            while ((n = in.read(skip)) >= 0) {
+                write(skip, 0, n);
+            }
+        }
+
+        @Override
+        public void reset() {
+            count = 0;
+            if (crc != null) {
+                crc.reset();
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * An in-memory output stream over a pooled buffer, grown by moving to a larger size class.
+     * release() returns the buffer; the stream must not be used afterwards.
+     */
+    public static class BufferOutputStream extends OutputStream {
+        private ByteBuffer buffer; // write mode
+
+        public int size() {
+            return buffer == null ? 0 : buffer.position();
+        }
 
-            String h = context.readStringUntil("\r\n\r\n", true);
-            String[] hs = h.split("\r\n");
-            for (int i = 0; i < hs.length; i++) {
-                String[] hss = hs[i].split(": ");
-                String value = "";
-                if (hss.length > 1) {
-                    value = hss[1];
+        public byte[] array() {
+            ensure(0);
+            return buffer.array();
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            buffer.put(b, off, len);
+        }
+
+        // copies the rest of in into this stream
+        public void readFrom(InputStream in) throws IOException {
+            while (true) {
+                ensure(1);
+                int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (n < 0) {
+                    return;
                 }
-                req.headers.put(hss[0], value);
+                buffer.position(buffer.position() + n);
             }
-            context.bodyReadStarted = true;
-            context.bodyReadN = req.getContentLength();
-            //body
-            req.context = context;
-            return req;
         }
 
+        // a read view of the bytes written so far
+        ByteBuffer contents() {
+            ensure(0);
+            ByteBuffer b = buffer.duplicate();
+            b.flip();
+            return b;
+        }
 
+        public void writeTo(OutputStream outputStream) throws IOException {
+            if (size() > 0) {
+                outputStream.write(buffer.array(), 0, buffer.position());
+            }
+        }
 
-        public String bodyAsText() throws IOException {
-            return context.readStringUntil("\r\n\r\n", true);
+        public String toString(String charsetName) throws UnsupportedEncodingException {
+            if (size() == 0) {
+                return "";
+            }
+            return new String(buffer.array(), 0, buffer.position(), charsetName);
         }
 
-        public void bodyCopyToFile(String dst) throws IOException {
-            context.readBodyToFile(dst);
+        public void reset() {
+            if (buffer != null) {
+                buffer.clear();
+            }
         }
 
-        public static class MultipartFormField {
-            public String filename;
-            public long length;
-            public String name;
-            public String value;
-            public File file;
+        public void release() {
+            BufferPool.heap.release(buffer);
+            buffer = null;
         }
 
-        public static class MultipartFormBody{
-            private File file;
-            private long nLeftToRead;
-            private BufferedReader bufferedReader;
-            public MultipartFormBody(String filePath) throws FileNotFoundException {
-                file = new File(filePath);
-                nLeftToRead = file.length();
-                bufferedReader = new BufferedReader(new FileReader(filePath));
+        private void ensure(int n) {
+            if (buffer == null) {
+                buffer = BufferPool.heap.acquire(Math.max(n, 4 << 10));
+                return;
+            }
+            if (buffer.remaining() >= n) {
+                return;
             }
+            ByteBuffer bigger = BufferPool.heap.acquire((int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) buffer.position() + n, buffer.capacity() * 2L)));
+            buffer.flip();
+            bigger.put(buffer);
+            BufferPool.heap.release(buffer);
+            buffer = bigger;
+        }
+    }
 
-            public String readStringUntil(String sep,boolean excludeSep) throws IOException {
-                byte[] sepBytes = sep.getBytes("UTF-8");
-                ByteArrayOutputStream builder = new ByteArrayOutputStream();
-                readBytesUntil(builder, sep.getBytes("UTF-8"));
-                byte[] out = builder.toByteArray();
+    /**
+     * Input of a connection that outlives its requests. Bytes are read from the socket in bulk into a reusable buffer,
+     * the head parser works on the buffer directly and body reads drain it before touching the socket again.
+     */
+    static class ConnectionInput extends InputStream {
+        static final int initialSize = 4 << 10;
 
-                if (excludeSep) {
-                    if (StrX.bytesEndsWith(out, sepBytes)) {
-                        out = Arrays.copyOf(out, out.length - sepBytes.length);
-                    }
+        private final InputStream in;
+        ByteBuffer buffer; // read mode, position..limit are the unread bytes
+
+        ConnectionInput(InputStream in) {
+            this.in = in;
+            this.buffer = BufferPool.heap.acquire(initialSize);
+            this.buffer.flip();
+        }
+
+        // takes over a buffer in write mode that already holds bytes read from the connection
+        ConnectionInput(InputStream in, ByteBuffer filled) {
+            this.in = in;
+            this.buffer = filled;
+            this.buffer.flip();
+        }
+
+        // reads more bytes behind the unread ones, compacting or growing up to max; -1 on end of stream
+        int fill(int max) throws IOException {
+            if (buffer.limit() == buffer.capacity()) {
+                if (buffer.position() > 0) {
+                    buffer.compact();
+                    buffer.flip();
+                } else if (buffer.capacity() < max) {
+                    ByteBuffer bigger = BufferPool.heap.acquire(Math.min(buffer.capacity() * 2, max));
+                    bigger.put(buffer);
+                    bigger.flip();
+                    BufferPool.heap.release(buffer);
+                    buffer = bigger;
+                } else {
+                    throw new IOException("buffer full at " + max + " bytes");
+                }
+            } else if (!buffer.hasRemaining()) {
+                buffer.clear();
+                buffer.flip();
+            }
+            int limit = buffer.limit();
+            int n = in.read(buffer.array(), limit, buffer.capacity() - limit);
+            if (n > 0) {
+                buffer.limit(limit + n);
+            }
+            return n;
+        }
+
+        // hands the buffer over empty in write mode, for the event loop to read the next head into
+        ByteBuffer release() {
+            ByteBuffer b = buffer;
+            buffer = null;
+            b.clear();
+            return b;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining() && fill(buffer.capacity()) <= 0) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                // large reads skip the copy through the buffer
+                if (len >= buffer.capacity()) {
+                    return in.read(b, off, len);
                 }
-                if (out.length == 0) {
-                    return "";
+                if (fill(buffer.capacity()) <= 0) {
+                    return -1;
                 }
-                return new String(out, "UTF-8");
             }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            if (buffer.hasRemaining()) {
+                int k = (int) Math.min(n, buffer.remaining());
+                buffer.position(buffer.position() + k);
+                return k;
+            }
+            return in.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining() + in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer != null) {
+                BufferPool.heap.release(buffer);
+                buffer = null;
+            }
+            in.close();
+        }
+    }
+
+    /**
+     * Parses a request head straight out of the connection buffer. The head is located with one scan for CRLFCRLF,
+     * then the request line and header lines are cut into offsets; only the strings a Request keeps are created.
+     */
+    static class RequestParser {
+        static final int maxHeadSize = 64 << 10;
 
-            public void readBytesUntil(BufferedWriter outputStream,byte[] sep,boolean excludeSep) throws IOException {
-                byte[] window = new byte[sep.length];
-                int n = 0;
-                while (!StrX.bytesEquals(window, sep)) {
-                    int vi = bufferedReader.read();
-                    if (vi == -1) {
+        private static final String[] methods = {Methods.get, Methods.post, Methods.put, Methods.patch, Methods.head,
+            Methods.delete, Methods.connect, Methods.options, Methods.trace};
+
+        static Request parse(ConnectionInput input) throws Exception {
+            int scanned = 0;
+            int end;
+            while (true) {
+                ByteBuffer buffer = input.buffer;
+                // tolerate empty lines before the request line
+                while (buffer.hasRemaining() && scanned == 0) {
+                    byte b = buffer.get(buffer.position());
+                    if (b != '\r' && b != '\n') {
                         break;
                     }
-                    byte v = (byte) vi;
-                    if (!excludeSep) {
-                        outputStream.write(v);
+                    buffer.position(buffer.position() + 1);
+                }
+                end = indexOfHeadEnd(buffer.array(), buffer.position() + Math.max(scanned - 3, 0), buffer.limit());
+                if (end >= 0) {
+                    break;
+                }
+                scanned = buffer.remaining();
+                int n;
+                try {
+                    n = input.fill(maxHeadSize);
+                } catch (IOException e) {
+                    if (input.buffer.limit() == input.buffer.capacity()) {
+                        throw new Exception("request head exceeds " + maxHeadSize + " bytes");
                     }
+                    throw e;
+                }
+                if (n < 0) {
+                    throw new EOFException(scanned == 0 ? "connection closed before request line" : "connection closed in request head");
+                }
+            }
 
-                    nLeftToRead--;
-                    if (nLeftToRead <= 0) {
-                        break;
-                    }
+            ByteBuffer buffer = input.buffer;
+            byte[] b = buffer.array();
+            int p = buffer.position();
+            buffer.position(end);
+            int headEnd = end - 4;
 
-                    if (n < window.length) {
-                        window[n] = v;
-                        n++;
-                        continue;
+            Request req = new Request();
+            int lineEnd = indexOf(b, p, headEnd + 2, (byte) '\r');
+            int sp = indexOf(b, p, lineEnd, (byte) ' ');
+            if (sp < 0) {
+                throw new Exception("invalid request line");
+            }
+            req.method = method(b, p, sp);
+            if (req.method == null) {
+                throw new Exception("invalid http method:" + new String(b, p, sp - p, StandardCharsets.ISO_8859_1));
+            }
+            int uriStart = sp + 1;
+            sp = indexOf(b, uriStart, lineEnd, (byte) ' ');
+            if (sp < 0) {
+                throw new Exception("invalid request line");
+            }
+            req.requestURI = new String(b, uriStart, sp - uriStart, StandardCharsets.UTF_8);
+            req.proto = proto(b, sp + 1, lineEnd);
+
+            p = lineEnd + 2;
+            req.headers.source(b, Math.min(p, headEnd), headEnd);
+            while (p < headEnd) {
+                lineEnd = indexOf(b, p, headEnd + 2, (byte) '\r');
+                int colon = indexOf(b, p, lineEnd, (byte) ':');
+                if (colon > p) {
+                    int v = colon + 1;
+                    while (v < lineEnd && (b[v] == ' ' || b[v] == '\t')) {
+                        v++;
                     }
+                    int ve = lineEnd;
+                    while (ve > v && (b[ve - 1] == ' ' || b[ve - 1] == '\t')) {
+                        ve--;
+                    }
+                    req.headers.addRange(p, colon, v, ve);
+                }
+                p = lineEnd + 2;
+            }
+            return req;
+        }
+
+        // index right after the first CRLFCRLF in b[from, to), or -1
+        static int indexOfHeadEnd(byte[] b, int from, int to) {
+            for (int i = from; i + 3 < to; i++) {
+                if (b[i + 3] != '\n') {
+                    // the last byte decides most positions without looking at the others
+                    continue;
+                }
+                if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r') {
+                    return i + 4;
+                }
+            }
+            return -1;
+        }
+
+        private static int indexOf(byte[] b, int from, int to, byte v) {
+            for (int i = from; i < to; i++) {
+                if (b[i] == v) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean equalsAscii(byte[] b, int from, int to, String s) {
+            if (to - from != s.length()) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                if (b[from + i] != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String method(byte[] b, int from, int to) {
+            for (String m : methods) {
+                if (equalsAscii(b, from, to, m)) {
+                    return m;
+                }
+            }
+            return null;
+        }
+
+        private static String proto(byte[] b, int from, int to) {
+            if (equalsAscii(b, from, to, Protocol.HTTP_1_1)) {
+                return Protocol.HTTP_1_1;
+            }
+            return new String(b, from, to - from, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Request body over the connection input. A fixed body ends after Content-Length bytes, a chunked one is
+     * decoded chunk by chunk as it is read. Closing it does nothing, the connection owns the socket.
+     */
+    public static class BodyInputStream extends InputStream {
+        private static final int maxChunkLine = 4 << 10;
+
+        private final ConnectionInput in;
+        private final boolean chunked;
+        private long remaining; // bytes left in the body, or in the current chunk
+        private boolean chunkStarted = false;
+        private boolean eof;
+
+        private BodyInputStream(ConnectionInput in, boolean chunked, long remaining) {
+            this.in = in;
+            this.chunked = chunked;
+            this.remaining = remaining;
+            this.eof = !chunked && remaining == 0;
+        }
+
+        static BodyInputStream fixed(ConnectionInput in, long length) {
+            return new BodyInputStream(in, false, length);
+        }
+
+        static BodyInputStream chunked(ConnectionInput in) {
+            return new BodyInputStream(in, true, 0);
+        }
+
+        public boolean hasContent() {
+            return !eof;
+        }
+
+        // bytes known to be left, Long.MAX_VALUE when a chunked body has not ended yet
+        long remainingHint() {
+            if (eof) {
+                return 0;
+            }
+            return chunked ? Long.MAX_VALUE : remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureRemaining()) {
+                return -1;
+            }
+            int v = in.read();
+            if (v < 0) {
+                throw new EOFException("unexpected end of request body");
+            }
+            remaining--;
+            return v;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureRemaining()) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("unexpected end of request body");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || !ensureRemaining()) {
+                return 0;
+            }
+            long k = in.skip(Math.min(n, remaining));
+            remaining -= k;
+            return k;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (eof) {
+                return 0;
+            }
+            return (int) Math.min(in.buffer.remaining(), remaining);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        // skips the rest of the body, false if more than max bytes were left
+        boolean drain(long max) throws IOException {
+            long skipped = 0;
+            while (ensureRemaining()) {
+                if (skipped >= max) {
+                    return false;
+                }
+                long n = skip(max - skipped);
+                if (n <= 0) {
+                    if (read() < 0) {
+                        break;
+                    }
+                    n = 1;
+                }
+                skipped += n;
+            }
+            return true;
+        }
+
+        private boolean ensureRemaining() throws IOException {
+            if (eof) {
+                return false;
+            }
+            if (remaining > 0) {
+                return true;
+            }
+            if (!chunked) {
+                eof = true;
+                return false;
+            }
+            return nextChunk();
+        }
+
+        // chunk = size [; extensions] CRLF data CRLF, the last chunk has size 0 and is followed by trailers
+        private boolean nextChunk() throws IOException {
+            if (remaining == 0 && chunkStarted) {
+                expectCRLF();
+            }
+            chunkStarted = true;
+            String line = readLine();
+            int semicolon = line.indexOf(';');
+            if (semicolon >= 0) {
+                line = line.substring(0, semicolon);
+            }
+            try {
+                remaining = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid chunk size: " + line);
+            }
+            if (remaining < 0) {
+                throw new IOException("invalid chunk size: " + line);
+            }
+            if (remaining == 0) {
+                // trailers are read and dropped
+                while (!readLine().isEmpty()) {
+                }
+                eof = true;
+                return false;
+            }
+            return true;
+        }
+
+        private void expectCRLF() throws IOException {
+            if (in.read() != '\r' || in.read() != '\n') {
+                throw new IOException("missing CRLF after chunk");
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder builder = new StringBuilder();
+            while (true) {
+                int v = in.read();
+                if (v < 0) {
+                    throw new EOFException("unexpected end of chunked body");
+                }
+                if (v == '\n') {
+                    int len = builder.length();
+                    if (len > 0 && builder.charAt(len - 1) == '\r') {
+                        builder.setLength(len - 1);
+                    }
+                    return builder.toString();
+                }
+                if (builder.length() >= maxChunkLine) {
+                    throw new IOException("chunk line too long");
+                }
+                builder.append((char) v);
+            }
+        }
+    }
+
+    /**
+     * Compressed radix tree of routes. Static text is shared between routes and split where they differ,
+     * :name and *name segments hang off a node as dedicated children. Lookups walk the path once, trying the
+     * static child before the parameter and the wildcard, and record parameters as offsets into the path.
+     * Prefix routes (handleMultiFunc) are static nodes marked as matching everything below them.
+     * <p>
+     * The tree is never modified once published. Adding or removing a route rebuilds it from the route list and
+     * swaps it in through an AtomicReference, so requests in flight keep the table they started with and lookups
+     * never lock. Routes can be changed while serving.
+     */
+    static class Router {
+        private static final String[] methods = {Methods.get, Methods.post, Methods.put, Methods.patch, Methods.head,
+            Methods.delete, Methods.connect, Methods.options, Methods.trace};
+
+        static class Node {
+            String prefix;
+            String name; // of a parameter or wildcard node
+            char[] indices = new char[0]; // first char of each static child
+            Node[] children = new Node[0];
+            Node param;
+            Node wildcard;
+            Handler[][] handlers; // chain by method index, for the route ending here
+            Handler[][] prefixHandlers; // chain by method index, for the prefix route ending here
+            String[] paramNames; // of the route ending here
+
+            Node(String prefix) {
+                this.prefix = prefix;
+            }
+
+            Node child(char c) {
+                for (int i = 0; i < indices.length; i++) {
+                    if (indices[i] == c) {
+                        return children[i];
+                    }
+                }
+                return null;
+            }
+
+            void replaceChild(Node old, Node child) {
+                for (int i = 0; i < children.length; i++) {
+                    if (children[i] == old) {
+                        children[i] = child;
+                    }
+                }
+            }
+
+            void addChild(Node child) {
+                indices = Arrays.copyOf(indices, indices.length + 1);
+                indices[indices.length - 1] = child.prefix.charAt(0);
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+        }
+
+        static class Route {
+            final int method;
+            final String path;
+            final Handler[] handlers; // group and route handlers, global middleware is added when building
+            final boolean prefix;
+
+            Route(int method, String path, Handler[] handlers, boolean prefix) {
+                this.method = method;
+                this.path = path;
+                this.handlers = handlers;
+                this.prefix = prefix;
+            }
+        }
+
+        // immutable once published
+        static class Table {
+            final Node root = new Node("");
+            int maxParams = 0;
+        }
+
+        private final Map<String, Route> routes = new LinkedHashMap<>(); // guarded by this
+        private Handler[] middleware = new Handler[0]; // guarded by this
+        private final AtomicReference<Table> table = new AtomicReference<>(new Table());
+
+        static final String allMethods = allow(null);
+
+        // the methods a route answers, HEAD with GET and OPTIONS always; every method for null
+        static String allow(Handler[][] handlers) {
+            StringBuilder allow = new StringBuilder();
+            for (int i = 0; i < methods.length; i++) {
+                boolean answered = handlers == null || handlers[i] != null || methods[i].equals(Methods.options)
+                    || (methods[i].equals(Methods.head) && handlers[methodIndex(Methods.get)] != null);
+                if (answered) {
+                    if (allow.length() > 0) {
+                        allow.append(", ");
+                    }
+                    allow.append(methods[i]);
+                }
+            }
+            return allow.toString();
+        }
+
+        static int methodIndex(String method) {
+            switch (method) {
+                case Methods.get:
+                    return 0;
+                case Methods.post:
+                    return 1;
+                case Methods.put:
+                    return 2;
+                case Methods.patch:
+                    return 3;
+                case Methods.head:
+                    return 4;
+                case Methods.delete:
+                    return 5;
+                case Methods.connect:
+                    return 6;
+                case Methods.options:
+                    return 7;
+                case Methods.trace:
+                    return 8;
+            }
+            return -1;
+        }
+
+        synchronized void add(String method, String path, Handler[] handlers, boolean prefix) {
+            int m = methodIndex(method);
+            if (m < 0) {
+                throw new IllegalArgumentException("unsupported method: " + method);
+            }
+            if (handlers.length == 0) {
+                throw new IllegalArgumentException("no handler for " + path);
+            }
+            Map<String, Route> next = new LinkedHashMap<>(routes);
+            next.put(key(m, path, prefix), new Route(m, path, handlers, prefix));
+            table.set(build(next.values(), middleware)); // throws on conflicting routes before anything changes
+            routes.clear();
+            routes.putAll(next);
+        }
+
+        synchronized boolean remove(String method, String path, boolean prefix) {
+            int m = methodIndex(method);
+            if (m < 0 || routes.remove(key(m, path, prefix)) == null) {
+                return false;
+            }
+            table.set(build(routes.values(), middleware));
+            return true;
+        }
+
+        // global middleware runs before the handlers of every route, including routes added earlier
+        synchronized void use(Handler[] handlers) {
+            middleware = concat(middleware, handlers);
+            table.set(build(routes.values(), middleware));
+        }
+
+        static Handler[] concat(Handler[] a, Handler[] b) {
+            Handler[] c = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, c, a.length, b.length);
+            return c;
+        }
+
+        private static String key(int method, String path, boolean prefix) {
+            return (prefix ? "*" : "") + method + " " + path;
+        }
+
+        private static Table build(Collection<Route> routes, Handler[] middleware) {
+            Table t = new Table();
+            for (Route r : routes) {
+                insert(t, r.method, r.path, concat(middleware, r.handlers), r.prefix);
+            }
+            return t;
+        }
+
+        private static void insert(Table t, int m, String path, Handler[] chain, boolean prefix) {
+            if (prefix) {
+                Node n = insertStatic(t.root, path);
+                if (n.prefixHandlers == null) {
+                    n.prefixHandlers = new Handler[methods.length][];
+                }
+                n.prefixHandlers[m] = chain;
+                return;
+            }
+
+            Node n = t.root;
+            List<String> names = new ArrayList<>();
+            int i = 0;
+            while (i < path.length()) {
+                int j = i;
+                while (j < path.length() && path.charAt(j) != ':' && path.charAt(j) != '*') {
+                    j++;
+                }
+                n = insertStatic(n, path.substring(i, j));
+                if (j == path.length()) {
+                    break;
+                }
+                boolean wildcard = path.charAt(j) == '*';
+                int end = wildcard ? path.length() : path.indexOf('/', j);
+                if (end < 0) {
+                    end = path.length();
+                }
+                String name = path.substring(j + 1, end);
+                if (name.isEmpty() || (wildcard && name.indexOf('/') >= 0)) {
+                    throw new IllegalArgumentException("invalid parameter in path: " + path);
+                }
+                Node child = wildcard ? n.wildcard : n.param;
+                if (child == null) {
+                    child = new Node("");
+                    child.name = name;
+                    if (wildcard) {
+                        n.wildcard = child;
+                    } else {
+                        n.param = child;
+                    }
+                } else if (!child.name.equals(name)) {
+                    throw new IllegalArgumentException("parameter " + name + " in " + path + " conflicts with " + child.name);
+                }
+                names.add(name);
+                n = child;
+                i = end;
+            }
+            if (n.handlers == null) {
+                n.handlers = new Handler[methods.length][];
+            }
+            n.handlers[m] = chain;
+            n.paramNames = names.isEmpty() ? null : names.toArray(new String[0]);
+            t.maxParams = Math.max(t.maxParams, names.size());
+        }
+
+        // walks or creates the static path s below n, splitting nodes where s diverges
+        private static Node insertStatic(Node n, String s) {
+            while (!s.isEmpty()) {
+                Node c = n.child(s.charAt(0));
+                if (c == null) {
+                    c = new Node(s);
+                    n.addChild(c);
+                    return c;
+                }
+                int common = 0;
+                int max = Math.min(c.prefix.length(), s.length());
+                while (common < max && c.prefix.charAt(common) == s.charAt(common)) {
+                    common++;
+                }
+                if (common < c.prefix.length()) {
+                    Node split = new Node(c.prefix.substring(0, common));
+                    c.prefix = c.prefix.substring(common);
+                    split.addChild(c);
+                    n.replaceChild(c, split);
+                    c = split;
+                }
+                s = s.substring(common);
+                n = c;
+            }
+            return n;
+        }
+
+        // handler chains of the route matching path by method index, null if no route matches
+        Handler[][] find(String path, Context context) {
+            Table t = table.get();
+            int[] ranges = t.maxParams > 0 ? new int[t.maxParams * 2] : null;
+            Node n = match(t.root, path, 0, ranges, 0);
+            if (n != null) {
+                context.path = path;
+                context.paramNames = n.paramNames;
+                context.paramRanges = ranges;
+                return n.handlers;
+            }
+            n = longestPrefix(t.root, path);
+            return n == null ? null : n.prefixHandlers;
+        }
+
+        private static Node match(Node n, String path, int i, int[] ranges, int k) {
+            if (i == path.length()) {
+                if (n.handlers != null) {
+                    return n;
+                }
+                if (n.wildcard != null && n.wildcard.handlers != null) {
+                    ranges[k * 2] = i;
+                    ranges[k * 2 + 1] = i;
+                    return n.wildcard;
+                }
+                return null;
+            }
+            Node child = n.child(path.charAt(i));
+            if (child != null && path.startsWith(child.prefix, i)) {
+                Node r = match(child, path, i + child.prefix.length(), ranges, k);
+                if (r != null) {
+                    return r;
+                }
+            }
+            if (n.param != null) {
+                int end = path.indexOf('/', i);
+                if (end < 0) {
+                    end = path.length();
+                }
+                if (end > i) {
+                    ranges[k * 2] = i;
+                    ranges[k * 2 + 1] = end;
+                    Node r = match(n.param, path, end, ranges, k + 1);
+                    if (r != null) {
+                        return r;
+                    }
+                }
+            }
+            if (n.wildcard != null && n.wildcard.handlers != null) {
+                ranges[k * 2] = i;
+                ranges[k * 2 + 1] = path.length();
+                return n.wildcard;
+            }
+            return null;
+        }
+
+        private static Node longestPrefix(Node root, String path) {
+            Node n = root;
+            Node best = root.prefixHandlers != null ? root : null;
+            int i = 0;
+            while (i < path.length()) {
+                Node child = n.child(path.charAt(i));
+                if (child == null || !path.startsWith(child.prefix, i)) {
+                    break;
+                }
+                i += child.prefix.length();
+                n = child;
+                if (n.prefixHandlers != null) {
+                    best = n;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Routes sharing a path prefix and middleware. The group's middleware is copied into each route when it is
+     * registered, so middleware added to the group later only applies to routes registered after it.
+     */
+    public static class Group {
+        private final Gin gin;
+        private final String prefix;
+        private Handler[] middleware;
+
+        Group(Gin gin, String prefix, Handler[] middleware) {
+            this.gin = gin;
+            this.prefix = prefix;
+            this.middleware = middleware;
+        }
+
+        public Group use(Handler... middleware) {
+            this.middleware = Router.concat(this.middleware, middleware);
+            return this;
+        }
+
+        public Group group(String prefix, Handler... middleware) {
+            return new Group(gin, this.prefix + prefix, Router.concat(this.middleware, middleware));
+        }
+
+        public void handleFunc(String method, String path, Handler... handlers) {
+            gin.handleFunc(method, prefix + path, Router.concat(middleware, handlers));
+        }
+
+        public void handleMultiFunc(String method, String path, Handler... handlers) {
+            gin.handleMultiFunc(method, prefix + path, Router.concat(middleware, handlers));
+        }
+
+        public void get(String path, Handler... handlers) {
+            handleFunc(Methods.get, path, handlers);
+        }
+
+        public void post(String path, Handler... handlers) {
+            handleFunc(Methods.post, path, handlers);
+        }
+
+        public void put(String path, Handler... handlers) {
+            handleFunc(Methods.put, path, handlers);
+        }
+
+        public void getMultiple(String path, Handler... handlers) {
+            handleMultiFunc(Methods.get, path, handlers);
+        }
+    }
+
+    public static class Context {
+        public final Request request;
+        public final Response response;
+
+        private final Socket socket;
+        private final ConnectionInput inputStream;
+        private OutputStream outputStream;
+        private boolean broken = false; // the connection can't be read past this request
+        private static final long maxDrain = 64 << 10;
+        private String cacheDir;
+        private final Gin gin; // server settings
+        private static final int abortIndex = Integer.MAX_VALUE / 2;
+        private Handler[] chain; // middleware and handlers of the matched route
+        private int index = -1; // in chain
+        private int served; // requests answered on the connection before this one
+        private String[] paramNames;
+        private int[] paramRanges; // start and end of each parameter value in the path
+        private String path;
+        // reads the next request of the socket with the settings of the server that accepted it
+        public Context(Socket socket, Gin gin) throws Exception {
+            this(socket, new ConnectionInput(socket.getInputStream()), gin);
+        }
+
+        Context(Socket socket, ConnectionInput inputStream, Gin gin) throws Exception {
+            this.gin = gin;
+            this.cacheDir = gin.cacheDir;
+            this.socket = socket;
+            this.inputStream = inputStream;
+            this.outputStream = socket.getOutputStream();
+            this.request = Request.readContext(this);
+            this.response = new Response(this);
+        }
+
+        // a request with an undrainable body ends the connection, as does a body still held back for 100 Continue
+        private boolean canKeepAlive() {
+            if (broken || request.awaitingContinue()) {
+                return false;
+            }
+            return request.keepAlive() && request.body.remainingHint() <= maxDrain;
+        }
+
+        // the length of an unread chunked body is unknown, so try to skip it before the response says keep-alive
+        private void settleBody() {
+            if (broken || request.body.remainingHint() != Long.MAX_VALUE || request.awaitingContinue()) {
+                return;
+            }
+            try {
+                broken = !request.body.drain(maxDrain);
+            } catch (IOException e) {
+                broken = true;
+            }
+        }
+
+        // whether the request may run concurrently with the ones pipelined after it
+        private boolean pipelinable() {
+            switch (request.method) {
+                case Methods.get:
+                case Methods.head:
+                case Methods.options:
+                    return !request.body.hasContent() && canKeepAlive();
+            }
+            return false;
+        }
+
+        // the socket's channel when the response goes straight to it, null if it is buffered or there is no channel
+        private SocketChannel channel() {
+            return outputStream instanceof BufferOutputStream ? null : socket.getChannel();
+        }
+
+        // collects the response in memory instead of writing it to the socket
+        private void bufferOutput() {
+            outputStream = new BufferOutputStream();
+        }
+
+        private void releaseBuffers() {
+            request.release();
+            response.release();
+            if (outputStream instanceof BufferOutputStream) {
+                ((BufferOutputStream) outputStream).release();
+            }
+        }
+
+        // skips what the handler left unread of the body so the next request starts at the right byte
+        private boolean drainBody() throws IOException {
+            if (request.awaitingContinue()) {
+                // the client may never send the body, whatever comes next would be taken for it
+                return false;
+            }
+            return request.body.drain(maxDrain);
+        }
+
+        public void close() throws IOException {
+            inputStream.close();
+            outputStream.flush();
+            outputStream.close();
+            socket.close();
+        }
+
+        public String readStringUntil(String sep, boolean excludeSep) throws IOException {
+            byte[] sepBytes = sep.getBytes("UTF-8");
+            ByteArrayOutputStream builder = new ByteArrayOutputStream();
+
+            readBytesUntil(builder, sepBytes);
+            byte[] out = builder.toByteArray();
+
+            if (excludeSep) {
+                if (StrX.bytesEndsWith(out, sepBytes)) {
+                    out = Arrays.copyOf(out, out.length - sepBytes.length);
+                }
+            }
+            return new String(out, "UTF-8");
+        }
+
+        // reads the request body up to and including sep, or to its end
+        private void readBytesUntil(OutputStream outputStream, byte[] sep) throws IOException {
+            InputStream body = request.body();
+            byte[] window = new byte[sep.length];
+            int n = 0;
+            while (!StrX.bytesEquals(window, sep)) {
+                int vi = body.read();
+                if (vi == -1) {
+                    break;
+                }
+                byte v = (byte) vi;
+                outputStream.write(v);
+
+                if (n < window.length) {
+                    window[n] = v;
+                    n++;
+                    continue;
+                }
+                for (int i = 0; i < window.length; i++) {
+                    if (i < window.length - 1) {
+                        window[i] = window[i + 1];
+                        continue;
+                    }
+                    window[i] = v;
+                }
+            }
+        }
+
+
+        public String requestURI() {
+            return request.requestURI;
+        }
+
+        /**
+         * Runs the remaining handlers of the chain. Middleware calls it to do work after the handlers that follow it;
+         * middleware that does not call it is followed by the next handler once it returns.
+         */
+        public void next() throws Exception {
+            index++;
+            while (index < chain.length) {
+                chain[index].handle(this);
+                index++;
+            }
+        }
+
+        // skips the remaining handlers, the response written so far is sent
+        public void abort() {
+            index = abortIndex;
+        }
+
+        public boolean isAborted() {
+            return index >= abortIndex;
+        }
+
+        // value of a :name or *name segment of the matched route, empty if there is none
+        public String param(String name) {
+            if (paramNames == null) {
+                return "";
+            }
+            for (int i = 0; i < paramNames.length; i++) {
+                if (paramNames[i].equals(name)) {
+                    return path.substring(paramRanges[i * 2], paramRanges[i * 2 + 1]);
+                }
+            }
+            return "";
+        }
+
+        public void serveFile(String path) throws IOException {
+            response.serveFile(path);
+        }
+
+        public void string(int code, String s) throws IOException {
+            response.string(code, s);
+        }
+
+        public void html(int code, String s) throws IOException {
+            response.html(code, s);
+        }
+
+        public void html(int code, DSL.Element element) throws IOException {
+            response.html(code, element);
+        }
+
+        public void html(int code, DSL.Template template, Map<String, ?> values) throws IOException {
+            response.html(code, template, values);
+        }
+
+        // sent while rendering, see Response.stream
+        public void streamHtml(int code, DSL.Element element) throws IOException {
+            element.render(response.stream(code, ContentTypes.textHtml));
+        }
+
+        public void notFound() throws IOException {
+            response.notFound();
+        }
+
+        public void forbidden() throws IOException {
+            response.forbidden();
+        }
+
+        public void badRequest(String s) throws IOException {
+            response.badRequest(s);
+        }
+
+        public void header(String key, String value) {
+            response.headers.put(key, value);
+        }
+
+        public void readBodyToFile(String dst) throws IOException {
+            FileX.readInputStreamToFile(request.body(), dst);
+        }
+
+        public String bodyAsText() throws IOException {
+            return request.bodyAsText();
+        }
+    }
+
+    public static class Request {
+        public String method;
+        public String requestURI;
+        public String proto;
+        public Map<String, String> searchMap;
+
+        public HeaderTable headers = new HeaderTable();
+
+        private Context context;
+        private BodyInputStream body;
+        private boolean continueSent = false;
+        private long reserved = 0; // bytes of the multipart in-flight budget
+        private List<ByteBuffer> borrowed;
+        private static final byte[] continueResponse = (Protocol.HTTP_1_1 + " 100 Continue\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        public Request() {
+
+        }
+
+        public String query(String key) {
+            if (searchMap == null) {
+                String search = StrX.subAfter(requestURI, "?", "");
+                searchMap = new HashMap<>();
+                if (!search.isEmpty()) {
+                    String[] ss = search.split("&");
+                    for (String s : ss) {
+                        String[] kv = s.split("=");
+                        if (kv.length != 2) {
+                            continue;
+                        }
+                        try {
+                            searchMap.put(kv[0], URLDecoder.decode(kv[1], "UTF-8"));
+                        } catch (UnsupportedEncodingException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+            String s = searchMap.get(key);
+            if (s == null) {
+                s = "";
+            }
+            return s;
+        }
+
+        /**
+         * Byte ranges a GET asks for with a Range header, as start and exclusive end pairs clipped to length.
+         * null when the whole representation should be sent, an empty array when none of the ranges can be satisfied.
+         */
+        public long[] ranges(long length) {
+            String range = headers.get(Headers.range);
+            if (range == null || !Methods.get.equals(method) || !range.startsWith("bytes=")) {
+                return null;
+            }
+            String[] specs = range.substring(6).split(",");
+            if (specs.length > maxRanges) {
+                return null;
+            }
+            long[] ranges = new long[specs.length * 2];
+            int n = 0;
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                long start;
+                long end;
+                try {
+                    if (dash == 0) {
+                        long suffix = Long.parseLong(spec.substring(1));
+                        if (suffix < 0) {
+                            return null;
+                        }
+                        start = Math.max(0, length - suffix);
+                        end = suffix == 0 ? 0 : length;
+                    } else if (dash > 0) {
+                        start = Long.parseLong(spec.substring(0, dash));
+                        long last = dash == spec.length() - 1 ? Long.MAX_VALUE - 1 : Long.parseLong(spec.substring(dash + 1));
+                        if (start < 0 || last < start) {
+                            return null;
+                        }
+                        end = Math.min(length, last + 1);
+                    } else {
+                        return null;
+                    }
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (start >= end) {
+                    continue;
+                }
+                ranges[n++] = start;
+                ranges[n++] = end;
+            }
+            return Arrays.copyOf(ranges, n);
+        }
+
+        private static final int maxRanges = 16;
+
+        // whether an If-Range, if any, names the current representation so that Range may be honored
+        public boolean ifRangeMatches(String etag, String lastModified) {
+            String v = headers.get(Headers.ifRange);
+            if (v == null) {
+                return true;
+            }
+            if (v.startsWith("\"")) {
+                return v.equals(etag);
+            }
+            return v.equals(lastModified);
+        }
+
+        /**
+         * Whether a GET or HEAD can be answered with 304 Not Modified given the current validators.
+         * etag may be null and lastModified 0 when unknown; If-None-Match takes precedence over If-Modified-Since.
+         */
+        public boolean notModified(String etag, long lastModified) {
+            if (!Methods.get.equals(method) && !Methods.head.equals(method)) {
+                return false;
+            }
+            String ifNoneMatch = headers.get(Headers.ifNoneMatch);
+            if (ifNoneMatch != null) {
+                return etag != null && matchesETag(ifNoneMatch, etag);
+            }
+            String ifModifiedSince = headers.get(Headers.ifModifiedSince);
+            if (ifModifiedSince == null || lastModified <= 0) {
+                return false;
+            }
+            long since = TimeX.parseHttpDate(ifModifiedSince);
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+
+        // weak comparison against a list of entity tags
+        private static boolean matchesETag(String list, String etag) {
+            String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+            for (String tag : list.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*")) {
+                    return true;
+                }
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(opaque)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public long getContentLength() {
+            String s = headers.get(Headers.contentLength);
+            if (s == null || s.isEmpty()) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(s);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return -1;
+            }
+        }
+
+        public String path() {
+            return StrX.subBeforeLast(requestURI, "?", requestURI);
+        }
+
+        public static Request readContext(Context context) throws Exception {
+            Request req = RequestParser.parse(context.inputStream);
+            //body
+            String te = req.headers.get(Headers.transferEncoding);
+            if (te != null) {
+                if (!StrX.subAfterLast(te, ",", te).trim().equalsIgnoreCase("chunked")) {
+                    throw new Exception("unsupported transfer-encoding: " + te);
+                }
+                req.body = BodyInputStream.chunked(context.inputStream);
+            } else {
+                req.body = BodyInputStream.fixed(context.inputStream, Math.max(req.getContentLength(), 0));
+            }
+            req.context = context;
+            return req;
+        }
+
+
+
+        /**
+         * The request body, limited to Content-Length or decoded from chunked transfer encoding.
+         * Whatever the handler leaves unread is drained before the connection is reused.
+         */
+        public InputStream body() throws IOException {
+            if (awaitingContinue()) {
+                context.outputStream.write(continueResponse);
+                context.outputStream.flush();
+            }
+            continueSent = true;
+            return body;
+        }
+
+        // the client holds the body back until it sees 100 Continue
+        private boolean awaitingContinue() {
+            if (continueSent || !body.hasContent()) {
+                return false;
+            }
+            String expect = headers.get(Headers.expect);
+            return expect != null && expect.equalsIgnoreCase("100-continue");
+        }
+
+        public ReadableByteChannel bodyChannel() throws IOException {
+            return Channels.newChannel(body());
+        }
+
+        public String bodyAsText() throws IOException {
+            BufferOutputStream builder = new BufferOutputStream();
+            try {
+                builder.readFrom(body());
+                return builder.toString("UTF-8");
+            } finally {
+                builder.release();
+            }
+        }
+
+        public boolean keepAlive() {
+            String connection = headers.get(Headers.connection);
+            if (Protocol.HTTP_1_1.equals(proto)) {
+                return connection == null || !connection.equalsIgnoreCase("close");
+            }
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+
+        public void bodyCopyToFile(String dst) throws IOException {
+            context.readBodyToFile(dst);
+        }
+
+        /**
+         * Parts up to MultipartConfig.memoryThreshold are kept in memory: value for fields, data for files.
+         * Larger parts are written to file. data holds exactly length bytes and may be kept after the handler returns.
+         */
+        public static class MultipartFormField {
+            public String filename;
+            public long length;
+            public String name;
+            public String value;
+            public File file;
+            public byte[] data;
+            public String contentType;
+
+            public boolean inMemory() {
+                return file == null;
+            }
+
+            public InputStream open() throws IOException {
+                if (file != null) {
+                    return new FileInputStream(file);
+                }
+                if (data != null) {
+                    return new ByteArrayInputStream(data, 0, (int) length);
+                }
+                return new ByteArrayInputStream(value == null ? new byte[0] : value.getBytes("UTF-8"));
+            }
+
+            public void saveTo(String dst) throws IOException {
+                if (file != null) {
+                    FileX.moveFile(dst, file.getPath());
+                    file = new File(dst);
+                    return;
+                }
+                InputStream in = open();
+                try {
+                    FileX.readInputStreamToFile(in, dst);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        /**
+         * Single pass multipart parser. The body is read into one large buffer and searched for
+         * CRLF--boundary with a Horspool skip table; the bytes before a match are handed out as the part content.
+         * The body is treated as if it started with CRLF so the first delimiter looks like all others.
+         */
+        public static class MultipartReader {
+            private static final int bufferSize = 64 << 10;
+
+            public final String boundary;
+            private final InputStream in;
+            private final byte[] delimiter;
+            private final int[] skip = new int[256];
+            private final ByteBuffer buffer = BufferPool.heap.acquire(bufferSize);
+            private final byte[] buf = buffer.array();
+            private int pos = 0;
+            private int limit = 0;
+            private boolean atDelimiter = false;
+            private boolean done = false;
+
+            // the reader's buffer goes back to the pool, parts can't be read any more
+            public void close() {
+                done = true;
+                BufferPool.heap.release(buffer);
+            }
+
+            public MultipartReader(InputStream in, String boundary) {
+                this.in = in;
+                this.boundary = boundary;
+                this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+                if (delimiter.length > 256) {
+                    throw new IllegalArgumentException("boundary too long");
+                }
+                Arrays.fill(skip, delimiter.length);
+                for (int i = 0; i < delimiter.length - 1; i++) {
+                    skip[delimiter[i] & 0xff] = delimiter.length - 1 - i;
+                }
+                buf[limit++] = '\r';
+                buf[limit++] = '\n';
+            }
+
+            public static class Part {
+                public String name;
+                public String filename;
+                public String contentType;
+                public final Map<String, String> headers = new HashMap<>();
+
+                private final MultipartReader reader;
+                private final InputStream stream;
+
+                private Part(MultipartReader reader) {
+                    this.reader = reader;
+                    this.stream = new InputStream() {
+                        @Override
+                        public int read() throws IOException {
+                            int n = reader.segment(1);
+                            if (n < 0) {
+                                return -1;
+                            }
+                            return reader.buf[reader.pos++] & 0xff;
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            if (len == 0) {
+                                return 0;
+                            }
+                            int n = reader.segment(len);
+                            if (n < 0) {
+                                return -1;
+                            }
+                            System.arraycopy(reader.buf, reader.pos, b, off, n);
+                            reader.pos += n;
+                            return n;
+                        }
+                    };
+                }
+
+                // the content of this part, ends at the next boundary
+                public InputStream stream() {
+                    return stream;
+                }
+
+                public long transferTo(OutputStream outputStream) throws IOException {
+                    long total = 0;
+                    int n;
+                    while ((n = reader.segment(Integer.MAX_VALUE)) >= 0) {
+                        outputStream.write(reader.buf, reader.pos, n);
+                        reader.pos += n;
+                        total += n;
+                    }
+                    return total;
+                }
+
+                public long transferTo(File file) throws IOException {
+                    FileX.truncateFile(file.getPath());
+                    FileOutputStream fileOutputStream = new FileOutputStream(file);
+                    try {
+                        return transferTo(fileOutputStream);
+                    } finally {
+                        fileOutputStream.close();
+                    }
+                }
+
+                public String text() throws IOException {
+                    ByteArrayOutputStream builder = new ByteArrayOutputStream();
+                    transferTo(builder);
+                    return builder.toString("UTF-8");
+                }
+            }
+
+            // the next part, after skipping what is left of the current one; null after the closing boundary
+            public Part next() throws IOException {
+                if (done) {
+                    return null;
+                }
+                // preamble, or the unread rest of the current part
+                int n;
+                while ((n = segment(Integer.MAX_VALUE)) >= 0) {
+                    pos += n;
+                }
+                atDelimiter = false;
+                ensure(2);
+                if (buf[pos] == '-' && buf[pos + 1] == '-') {
+                    done = true;
+                    return null;
+                }
+                // transport padding after the boundary
+                readLine();
+
+                Part part = new Part(this);
+                String line;
+                while (!(line = readLine()).isEmpty()) {
+                    String key = StrX.subBefore(line, ":", line).trim();
+                    String value = StrX.subAfter(line, ":", "").trim();
+                    part.headers.put(key, value);
+                    if (key.equalsIgnoreCase("Content-Disposition")) {
+                        for (String param : value.split(";")) {
+                            param = param.trim();
+                            String k = StrX.subBefore(param, "=", param);
+                            String v = StrX.trimBoth(StrX.subAfter(param, "=", ""), "\"");
+                            if (k.equals("name")) {
+                                part.name = v;
+                            } else if (k.equals("filename")) {
+                                part.filename = URLDecoder.decode(v, "UTF-8");
+                            }
+                        }
+                    } else if (key.equalsIgnoreCase(Headers.contentType)) {
+                        part.contentType = value;
+                    }
+                }
+                return part;
+            }
+
+            /**
+             * Number of content bytes (at most max) at pos that are certainly before the next delimiter,
+             * -1 once the delimiter is reached. The delimiter itself is consumed.
+             */
+            private int segment(int max) throws IOException {
+                while (true) {
+                    if (atDelimiter) {
+                        return -1;
+                    }
+                    int m = indexOfDelimiter();
+                    // without a match the last delimiter.length - 1 bytes may be the start of one
+                    int safe = m >= 0 ? m : Math.max(pos, limit - (delimiter.length - 1));
+                    if (safe > pos) {
+                        return Math.min(max, safe - pos);
+                    }
+                    if (m == pos) {
+                        pos += delimiter.length;
+                        atDelimiter = true;
+                        return -1;
+                    }
+                    if (fill() < 0) {
+                        throw new EOFException("multipart body ended before the closing boundary");
+                    }
+                }
+            }
+
+            // Horspool search in buf[pos, limit)
+            private int indexOfDelimiter() {
+                int last = delimiter.length - 1;
+                int i = pos;
+                while (i + last < limit) {
+                    int j = last;
+                    while (buf[i + j] == delimiter[j]) {
+                        if (j == 0) {
+                            return i;
+                        }
+                        j--;
+                    }
+                    i += skip[buf[i + last] & 0xff];
+                }
+                return -1;
+            }
+
+            private int fill() throws IOException {
+                if (pos > 0) {
+                    System.arraycopy(buf, pos, buf, 0, limit - pos);
+                    limit -= pos;
+                    pos = 0;
+                }
+                if (limit == buf.length) {
+                    throw new IOException("multipart header line too long");
+                }
+                int n = in.read(buf, limit, buf.length - limit);
+                if (n > 0) {
+                    limit += n;
+                }
+                return n;
+            }
+
+            private void ensure(int n) throws IOException {
+                while (limit - pos < n) {
+                    if (fill() < 0) {
+                        throw new EOFException("multipart body ended before the closing boundary");
+                    }
+                }
+            }
+
+            private String readLine() throws IOException {
+                int from = pos;
+                while (true) {
+                    for (int i = from; i + 1 < limit; i++) {
+                        if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                            String line = new String(buf, pos, i - pos, StandardCharsets.UTF_8);
+                            pos = i + 2;
+                            return line;
+                        }
+                    }
+                    from = Math.max(pos, limit - 1);
+                    int shift = pos;
+                    if (fill() < 0) {
+                        throw new EOFException("multipart body ended in part headers");
+                    }
+                    from -= shift;
+                }
+            }
+        }
+
+        /**
+         ------WebKitFormBoundary1FcV3vleeUX7Akxe
+         Content-Disposition: form-data; name="file"; filename="不对.txt"
+         Content-Type: text/plain
+
+         qwe
+         sdwefr
+         ===
+
+         ------WebKitFormBoundary1FcV3vleeUX7Akxe
+         Content-Disposition: form-data; name="file"; filename="你好.txt"
+         Content-Type: text/plain
+
+         asd
+         qwe
+         ------WebKitFormBoundary1FcV3vleeUX7Akxe
+         Content-Disposition: form-data; name="username"
+
+         健康减肥
+         ------WebKitFormBoundary1FcV3vleeUX7Akxe--
+         * @return
+         * @throws Exception
+         */
+        public List<MultipartFormField> parseMultipartForm() throws Exception {
+            MultipartConfig config = context.gin.multipartConfig;
+            if (getContentLength() > config.maxRequestSize) {
+                throw new HttpException(Status.payloadTooLarge, "request body exceeds " + config.maxRequestSize + " bytes");
+            }
+            MultipartReader reader = multipartReader();
+            try {
+                return readMultipartForm(reader, config);
+            } finally {
+                reader.close();
+            }
+        }
+
+        private List<MultipartFormField> readMultipartForm(MultipartReader reader, MultipartConfig config) throws Exception {
+            Log.d(TAG, "parseMultipartForm: ");
+            String boundary = "--" + reader.boundary;
+            List<MultipartFormField> list = new ArrayList<>();
+            long total = 0;
+            MultipartReader.Part part;
+            while ((part = reader.next()) != null) {
+                MultipartFormField field = new MultipartFormField();
+                field.name = part.name;
+                field.filename = part.filename;
+                field.contentType = part.contentType;
+                String spill = FileX.joinPath(context.cacheDir, boundary + (field.filename == null || field.filename.isEmpty() ? field.name : field.filename));
+                readField(part, field, spill, config, total);
+                total += field.length;
+                list.add(field);
+            }
+            return list;
+        }
+
+        // part content goes to memory until it outgrows the threshold, then to the spill file
+        private void readField(MultipartReader.Part part, MultipartFormField field, String spill, MultipartConfig config, long total) throws Exception {
+            MultipartReader reader = part.reader;
+            byte[] data = null;
+            OutputStream fileOutputStream = null;
+            long length = 0;
+            try {
+                int n;
+                while ((n = reader.segment(Integer.MAX_VALUE)) >= 0) {
+                    length += n;
+                    if (length > config.maxPartSize) {
+                        throw new HttpException(Status.payloadTooLarge, "part " + field.name + " exceeds " + config.maxPartSize + " bytes");
+                    }
+                    if (total + length > config.maxRequestSize) {
+                        throw new HttpException(Status.payloadTooLarge, "request body exceeds " + config.maxRequestSize + " bytes");
+                    }
+                    if (!config.reserve(n)) {
+                        throw new HttpException(Status.payloadTooLarge, "too many uploads in flight");
+                    }
+                    reserved += n;
+
+                    if (fileOutputStream == null && length > config.memoryThreshold) {
+                        field.file = new File(spill);
+                        FileX.truncateFile(spill);
+                        fileOutputStream = new FileOutputStream(field.file);
+                        if (data != null) {
+                            fileOutputStream.write(data, 0, (int) (length - n));
+                            data = null;
+                        }
+                    }
+                    if (fileOutputStream != null) {
+                        fileOutputStream.write(reader.buf, reader.pos, n);
+                    } else {
+                        if (data == null || length > data.length) {
+                            // pooled buffers are handed out by size class, so growing is rare
+                            ByteBuffer buffer = borrow((int) Math.min(Math.max(length, data == null ? 0 : data.length * 2L), config.memoryThreshold));
+                            if (data != null) {
+                                System.arraycopy(data, 0, buffer.array(), 0, (int) (length - n));
+                            }
+                            data = buffer.array();
+                        }
+                        System.arraycopy(reader.buf, reader.pos, data, (int) (length - n), n);
+                    }
+                    reader.pos += n;
+                }
+            } catch (Exception e) {
+                if (fileOutputStream != null) {
+                    fileOutputStream.close();
+                    fileOutputStream = null;
+                    field.file.delete();
+                }
+                throw e;
+            } finally {
+                if (fileOutputStream != null) {
+                    fileOutputStream.close();
+                }
+            }
+            field.length = length;
+            if (field.file != null) {
+                return;
+            }
+            if (field.filename == null || field.filename.isEmpty()) {
+                field.value = length == 0 ? "" : new String(data, 0, (int) length, "UTF-8");
+            } else {
+                // the pooled buffer is bigger than the part, holds old bytes behind it and is recycled after the request
+                field.data = data == null ? new byte[0] : Arrays.copyOf(data, (int) length);
+            }
+        }
+
+        // gives back the multipart in-flight budget and the pooled buffers this request borrowed
+        void release() {
+            if (reserved > 0) {
+                context.gin.multipartConfig.release(reserved);
+                reserved = 0;
+            }
+            if (borrowed != null) {
+                for (ByteBuffer buffer : borrowed) {
+                    BufferPool.heap.release(buffer);
+                }
+                borrowed = null;
+            }
+        }
+
+        // a pooled buffer that goes back to the pool when the request is finished
+        private ByteBuffer borrow(int size) {
+            ByteBuffer buffer = BufferPool.heap.acquire(size);
+            if (borrowed == null) {
+                borrowed = new ArrayList<>(2);
+            }
+            borrowed.add(buffer);
+            return buffer;
+        }
+
+        // reads the parts of a multipart/form-data body one by one, straight from the connection
+        public MultipartReader multipartReader() throws Exception {
+            // boundary: multipart/form-data; boundary=----WebKitFormBoundaryq0y6gUYIaRVQsaSa
+            String s = headers.get(Headers.contentType);
+            if (s == null || !s.startsWith("multipart/form-data")) {
+                throw new Exception("invalid content-type for multipart/form-data: " + s);
+            }
+            String boundary = StrX.subAfter(s, "boundary=", "");
+            boundary = StrX.trimBoth(StrX.subBefore(boundary, ";", boundary).trim(), "\"");
+            if (boundary.isEmpty()) {
+                throw new Exception("invalid content-type for multipart/form-data: " + s);
+            }
+
+            if (!body.hasContent()) {
+                throw new Exception("empty body, content length is 0");
+            }
+            return new MultipartReader(body(), boundary);
+        }
+
+        public String getContentType() {
+            return headers.get(Headers.contentType);
+        }
+    }
+
+    public static class Response {
+        public int statusCode = Status.ok;
+        public String proto = Protocol.HTTP_1_1;
+
+        public Map<String, String> headers = new HashMap<>();
+
+        private BufferOutputStream body;
+        private FileInputStream bodyFile; // closed by release()
+        private long[] fileRanges; // start and exclusive end of each part of bodyFile to send
+        private byte[][] partHeads; // multipart/byteranges delimiters, one per range and the closing one
+        private FileCache.Entry cachedFile;
+        // bodies streamed past this size are sent chunked
+        public static final int streamBufferSize = 16 << 10;
+        private BodyStream stream;
+        private Writer writer;
+        private boolean committed = false; // the head has been sent
+        private boolean keepAlive;
+        private boolean chunked;
+        private boolean finishing; // the handler returned, flushes no longer commit
+        private boolean wouldChunk; // a HEAD stream got to where the GET would have been sent chunked
+        private Compression.Encoder encoder; // of a streamed body
+        private final OutputStream chunkOut = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writeChunk(b, off, len);
+            }
+        };
+
+        private final Context context;
+
+        public Response(Context context) {
+            this.context = context;
+        }
+
+        private void flushData() throws IOException {
+            //header
+            if (cachedFile != null) {
+                sendCachedFile();
+                return;
+            }
+            if (bodyFile == null) {
+                checkValidators();
+                compress();
+            }
+            // the length of a HEAD response may also come from the handler or serveFile
+            if (bodyFile == null && !bodyless() && !(isHead() && body == null && headers.containsKey(Headers.contentLength))) {
+                headers.put(Headers.contentLength, String.valueOf(bodyLength()));
+            }
+            ByteBuffer head = HeadEncoder.encode(proto, statusCode, headers);
+            try {
+                if (body != null && body.size() > 0 && !isHead()) {
+                    send(head, body.contents());
+                    return;
+                }
+                send(head);
+            } finally {
+                BufferPool.heap.release(head);
+            }
+            if (bodyFile != null) {
+                sendFile();
+            }
+        }
+
+        // statuses that never have a body or Content-Length
+        private boolean bodyless() {
+            return statusCode < Status.ok || statusCode == Status.noContent || statusCode == Status.notModified;
+        }
+
+        // answers a buffered 200 with 304 when the request's validators match the response's
+        private void checkValidators() {
+            if (statusCode != Status.ok) {
+                return;
+            }
+            String etag = headers.get(Headers.etag);
+            // HEAD gets the tag its GET would get, computed from the discarded body
+            boolean tagged = Methods.get.equals(context.request.method) || (isHead() && !wouldChunk);
+            if (etag == null && context.gin.autoETag && tagged) {
+                etag = contentETag();
+                headers.put(Headers.etag, etag);
+            }
+            String lastModified = headers.get(Headers.lastModified);
+            if (etag == null && lastModified == null) {
+                return;
+            }
+            if (context.request.notModified(etag, lastModified == null ? 0 : TimeX.parseHttpDate(lastModified))) {
+                notModified();
+            }
+        }
+
+        private String contentETag() {
+            if (body instanceof DiscardingOutputStream) {
+                DiscardingOutputStream discarded = (DiscardingOutputStream) body;
+                return "\"" + Long.toHexString(discarded.count) + "-" + Long.toHexString(discarded.crc.getValue()) + "\"";
+            }
+            CRC32 crc = new CRC32();
+            int n = body == null ? 0 : body.size();
+            if (n > 0) {
+                crc.update(body.array(), 0, n);
+            }
+            return "\"" + Integer.toHexString(n) + "-" + Long.toHexString(crc.getValue()) + "\"";
+        }
+
+        // replaces a buffered body by its compressed form when that is negotiated and worth it
+        private void compress() throws IOException {
+            String encoding = encoding();
+            Compression compression = context.gin.compression;
+            if (encoding == null || body == null || body.size() < compression.threshold) {
+                return;
+            }
+            BufferOutputStream compressed = new BufferOutputStream();
+            Compression.Encoder encoder = compression.encoder(encoding);
+            try {
+                encoder.write(body.array(), 0, body.size(), compressed);
+                encoder.finish(compressed);
+            } finally {
+                encoder.release();
+            }
+            if (compressed.size() >= body.size()) {
+                compressed.release();
+                return;
+            }
+            body.release();
+            body = compressed;
+            useEncoding(encoding);
+        }
+
+        /**
+         * The content coding to apply to this response, null for none. Marks a compressible response as varying
+         * by Accept-Encoding either way, so shared caches keep the variants apart.
+         * HEAD is answered with the identity headers: its body is discarded, so its compressed length is unknown.
+         */
+        private String encoding() {
+            Compression compression = context.gin.compression;
+            if (compression == null || headers.containsKey(Headers.contentEncoding)
+                || !Compression.compressible(headers.get(Headers.contentType))) {
+                return null;
+            }
+            headers.put(Headers.vary, Headers.acceptEncoding);
+            if (bodyless() || isHead()) {
+                return null;
+            }
+            return Compression.negotiate(context.request.headers.get(Headers.acceptEncoding));
+        }
+
+        // a strong validator of the identity body would be wrong for the encoded one
+        private void useEncoding(String encoding) {
+            headers.put(Headers.contentEncoding, encoding);
+            String etag = headers.get(Headers.etag);
+            if (etag != null && !etag.startsWith("W/")) {
+                headers.put(Headers.etag, "W/" + etag);
+            }
+        }
+
+        // drops the body, the validators and other headers stay
+        private void notModified() {
+            statusCode = Status.notModified;
+            release();
+            headers.remove(Headers.contentLength);
+        }
+
+        // the entry carries its own header fields, the end of the head and the body
+        private void sendCachedFile() throws IOException {
+            ByteBuffer head = HeadEncoder.encode(proto, statusCode, headers, false);
+            try {
+                if (isHead()) {
+                    int fields = cachedFile.data.length - (cachedFile.mapped == null ? (int) cachedFile.length : 0);
+                    send(head, ByteBuffer.wrap(cachedFile.data, 0, fields));
+                } else if (cachedFile.mapped == null) {
+                    send(head, ByteBuffer.wrap(cachedFile.data));
+                } else {
+                    send(head, ByteBuffer.wrap(cachedFile.data), cachedFile.mapped.duplicate());
+                }
+            } finally {
+                BufferPool.heap.release(head);
+            }
+        }
+
+        private void sendFile() throws IOException {
+            FileChannel file = bodyFile.getChannel();
+            for (int i = 0; i < fileRanges.length; i += 2) {
+                if (partHeads != null) {
+                    send(ByteBuffer.wrap(partHeads[i / 2]));
+                }
+                transfer(file, fileRanges[i], fileRanges[i + 1] - fileRanges[i]);
+            }
+            if (partHeads != null) {
+                send(ByteBuffer.wrap(partHeads[partHeads.length - 1]));
+            }
+        }
+
+        // file to socket without copying through the heap (sendfile) when the socket has a channel
+        private void transfer(FileChannel file, long position, long count) throws IOException {
+            SocketChannel channel = context.channel();
+            WritableByteChannel target = channel != null ? channel : Channels.newChannel(context.outputStream);
+            while (count > 0) {
+                long n = file.transferTo(position, count, target);
+                if (n <= 0) {
+                    throw new EOFException("file shrank while sending");
+                }
+                position += n;
+                count -= n;
+            }
+        }
+
+        private void writeHead() throws IOException {
+            ByteBuffer head = HeadEncoder.encode(proto, statusCode, headers);
+            try {
+                send(head);
+            } finally {
+                BufferPool.heap.release(head);
+            }
+        }
+
+        // writes the buffers in order, with a single gathering write when the socket has a channel
+        private void send(ByteBuffer... buffers) throws IOException {
+            SocketChannel channel = context.channel();
+            if (channel == null) {
+                for (ByteBuffer b : buffers) {
+                    if (b.hasArray()) {
+                        context.outputStream.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                        continue;
+                    }
+                    byte[] chunk = new byte[Math.min(b.remaining(), 64 << 10)];
+                    ByteBuffer d = b.duplicate();
+                    while (d.hasRemaining()) {
+                        int n = Math.min(d.remaining(), chunk.length);
+                        d.get(chunk, 0, n);
+                        context.outputStream.write(chunk, 0, n);
+                    }
+                }
+                return;
+            }
+            long remaining = 0;
+            for (ByteBuffer b : buffers) {
+                remaining += b.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+
+        /**
+         * A stream for writing the body while the handler runs. Up to streamBufferSize bytes are held back, so a small
+         * body is still sent with Content-Length once the handler returns. Beyond that, or on flush(), the head is
+         * sent and the body follows in Transfer-Encoding: chunked frames; HTTP/1.0 clients get it unframed and the
+         * connection is closed after it. Headers can't be changed once the head is sent.
+         */
+        public OutputStream stream(int code, String contentType) {
+            statusCode = code;
+            setContentType(contentType);
+            if (stream == null) {
+                if (body == null) {
+                    body = newBody();
+                }
+                stream = new BodyStream();
+            }
+            return stream;
+        }
+
+        // UTF-8 writer over stream(), flushed when the handler returns
+        public Writer writer(int code, String contentType) {
+            OutputStream out = stream(code, contentType);
+            if (writer == null) {
+                writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            }
+            return writer;
+        }
+
+        public boolean isCommitted() {
+            return committed;
+        }
+
+        private void commit() throws IOException {
+            headers.remove(Headers.contentLength);
+            chunked = Protocol.HTTP_1_1.equals(context.request.proto);
+            keepAlive = chunked && context.gin.reusable(context, context.served);
+            if (chunked) {
+                headers.put(Headers.transferEncoding, "chunked");
+            }
+            setKeepAlive(keepAlive);
+            String encoding = encoding();
+            if (encoding != null) {
+                encoder = context.gin.compression.encoder(encoding);
+                useEncoding(encoding);
+            }
+            writeHead();
+            committed = true;
+        }
+
+        // body bytes of a committed stream, compressed if negotiated
+        private void emit(byte[] b, int off, int len) throws IOException {
+            if (encoder == null) {
+                writeChunk(b, off, len);
+            } else {
+                encoder.write(b, off, len, chunkOut);
+            }
+        }
+
+        private void writeChunk(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (chunked) {
+                byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                send(ByteBuffer.wrap(size), ByteBuffer.wrap(b, off, len), ByteBuffer.wrap(crlf));
+            } else {
+                send(ByteBuffer.wrap(b, off, len));
+            }
+        }
+
+        // ends a streamed body; one that never left the buffer is sent by flushData like any other
+        private void closeStream() throws IOException {
+            finishing = true;
+            if (writer != null) {
+                writer.flush();
+            }
+            if (stream == null || !committed) {
+                return;
+            }
+            stream.drain();
+            if (encoder != null) {
+                encoder.finish(chunkOut);
+                encoder.release();
+                encoder = null;
+            }
+            if (chunked) {
+                context.outputStream.write(lastChunk);
+            }
+            stream = null;
+        }
+
+        // the handler failed after the head was sent: nothing more is written and the connection is closed
+        private void abandon() {
+            if (encoder != null) {
+                encoder.release();
+                encoder = null;
+            }
+            stream = null;
+            writer = null;
+            keepAlive = false;
+            context.broken = true;
+        }
+
+        private static final byte[] crlf = {'\r', '\n'};
+        private static final byte[] lastChunk = {'0', '\r', '\n', '\r', '\n'};
+
+        private class BodyStream extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                ensureOpen();
+                if (isHead()) {
+                    wouldChunk |= bodyLength() >= streamBufferSize;
+                } else if (body.size() >= streamBufferSize) {
+                    drain();
+                }
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ensureOpen();
+                if (isHead()) {
+                    wouldChunk |= bodyLength() + len > streamBufferSize;
+                    body.write(b, off, len);
+                    return;
+                }
+                if (body.size() + len <= streamBufferSize) {
+                    body.write(b, off, len);
+                    return;
+                }
+                drain();
+                if (len >= streamBufferSize) {
+                    emit(b, off, len);
+                } else {
+                    body.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (finishing) {
+                    return;
+                }
+                if (isHead()) {
+                    wouldChunk = true;
+                    return;
+                }
+                drain();
+                if (encoder != null) {
+                    encoder.flush(chunkOut);
+                }
+                context.outputStream.flush();
+            }
+
+            // sends what is buffered as one chunk, committing the head first
+            void drain() throws IOException {
+                ensureOpen();
+                if (!committed) {
+                    commit();
+                }
+                emit(body.array(), 0, body.size());
+                body.reset();
+            }
+
+            private void ensureOpen() throws IOException {
+                if (stream != this) {
+                    throw new IOException("response already finished");
+                }
+            }
+        }
+
+        public void setKeepAlive(boolean keepAlive) {
+            headers.put(Headers.connection, keepAlive ? "keep-alive" : "close");
+        }
+
+        void release() {
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+            closeFile();
+            cachedFile = null;
+            if (encoder != null) {
+                encoder.release();
+                encoder = null;
+            }
+        }
+
+        private void closeFile() {
+            if (bodyFile != null) {
+                closeQuietly(bodyFile);
+                bodyFile = null;
+                fileRanges = null;
+                partHeads = null;
+            }
+        }
+
+        public void bytes(int code, byte[] bytes) throws IOException {
+            statusCode = code;
+            if (body == null) {
+                body = newBody();
+            }
+            body.write(bytes);
+        }
+
+        // a HEAD response only needs the length of the body the handler produces
+        private BufferOutputStream newBody() {
+            return isHead() ? new DiscardingOutputStream(context.gin.autoETag) : new BufferOutputStream();
+        }
+
+        private boolean isHead() {
+            return Methods.head.equals(context.request.method);
+        }
+
+        private long bodyLength() {
+            if (body instanceof DiscardingOutputStream) {
+                return ((DiscardingOutputStream) body).count;
+            }
+            return body == null ? 0 : body.size();
+        }
+
+        public void string(int code, String s) throws IOException {
+            if (s == null) {
+                s = "";
+            }
+            setContentType(ContentTypes.textPlain);
+            bytes(code, s.getBytes("UTF-8"));
+        }
+
+        public void html(int code, String s) throws IOException {
+            if (s == null) {
+                s = "";
+            }
+            setContentType(ContentTypes.textHtml);
+            bytes(code, s.getBytes("UTF-8"));
+        }
+
+        // rendered straight into the body buffer
+        public void html(int code, DSL.Element element) throws IOException {
+            statusCode = code;
+            setContentType(ContentTypes.textHtml);
+            if (body == null) {
+                body = newBody();
+            }
+            element.render(body);
+        }
+
+        public void html(int code, DSL.Template template, Map<String, ?> values) throws IOException {
+            statusCode = code;
+            setContentType(ContentTypes.textHtml);
+            if (body == null) {
+                body = newBody();
+            }
+            template.render(body, values);
+        }
+
+        public void htmlBody(int code, String s) throws IOException {
+            if (s == null) {
+                s = "";
+            }
+            html(code, "<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"UTF-8\"><meta name=\"viewport\" content=\"width=device-width,initial-scale=1\"><title>Information</title></head><body>" + s + "</body></html>");
+        }
+
+        public void json(int code, String s) throws IOException {
+            if (s == null) {
+                s = "";
+            }
+            setContentType(ContentTypes.applicationJson);
+            bytes(code, s.getBytes("UTF-8"));
+        }
+
+        public void setContentType(String s) {
+            headers.put(Headers.contentType, s);
+        }
+
+        public void setContentLength(long l) {
+            headers.put(Headers.contentLength, String.valueOf(l));
+        }
+
+        /**
+         * Sends the file, straight from the file to the socket where possible. A GET with a Range header gets
+         * 206 Partial Content, as multipart/byteranges when it asks for several ranges.
+         */
+        public void serveFile(String path) throws IOException {
+            String type = FileX.getMimeType(path);
+            setContentType(type);
+            boolean ranged = context.request.headers.containsKey(Headers.range);
+            boolean gzip = "gzip".equals(encoding()) && !ranged;
+            FileCache cache = context.gin.fileCache;
+            if (cache != null && !ranged) {
+                FileCache.Entry entry = cache.get(path);
+                if (entry != null && gzip && entry.mapped == null) {
+                    entry = cache.gzip(path, entry, context.gin.compression);
+                }
+                if (entry != null) {
+                    closeFile();
+                    headers.remove(Headers.contentType);
+                    if (context.request.notModified(entry.etag, entry.lastModified)) {
+                        headers.put(Headers.etag, entry.etag);
+                        headers.put(Headers.lastModified, TimeX.formatHttpDate(entry.lastModified));
+                        notModified();
+                        return;
+                    }
+                    cachedFile = entry;
+                    return;
+                }
+            }
+            File file = new File(path);
+            if (!file.isFile()) {
+                notFound();
+                return;
+            }
+            closeFile();
+            cachedFile = null;
+            if (gzip) {
+                File gz = new File(path + ".gz");
+                if (gz.isFile() && gz.lastModified() >= file.lastModified()) {
+                    file = gz;
+                    headers.put(Headers.contentEncoding, "gzip");
+                }
+            }
+            long length = file.length();
+            long lastModified = file.lastModified();
+            String etag = fileETag(lastModified, length);
+            String lastModifiedDate = TimeX.formatHttpDate(lastModified);
+            headers.put(Headers.etag, etag);
+            headers.put(Headers.lastModified, lastModifiedDate);
+            if (context.request.notModified(etag, lastModified)) {
+                notModified();
+                return;
+            }
+            if (!headers.containsKey(Headers.contentEncoding)) {
+                headers.put(Headers.acceptRanges, "bytes");
+            }
+            long[] ranges = context.request.ifRangeMatches(etag, lastModifiedDate) ? context.request.ranges(length) : null;
+            if (ranges != null && ranges.length == 0) {
+                headers.put(Headers.contentRange, "bytes */" + length);
+                htmlBody(Status.rangeNotSatisfiable, "416 Range Not Satisfiable");
+                return;
+            }
+            if (isHead()) {
+                setContentLength(length);
+                return;
+            }
+            bodyFile = new FileInputStream(file);
+            if (ranges == null) {
+                fileRanges = new long[]{0, length};
+                setContentLength(length);
+                return;
+            }
+            statusCode = Status.partialContent;
+            fileRanges = ranges;
+            if (ranges.length == 2) {
+                headers.put(Headers.contentRange, "bytes " + ranges[0] + "-" + (ranges[1] - 1) + "/" + length);
+                setContentLength(ranges[1] - ranges[0]);
+                return;
+            }
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            partHeads = new byte[ranges.length / 2 + 1][];
+            long total = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                String partHead = "\r\n--" + boundary + "\r\n" + Headers.contentType + ": " + type + "\r\n"
+                    + Headers.contentRange + ": bytes " + ranges[i] + "-" + (ranges[i + 1] - 1) + "/" + length + "\r\n\r\n";
+                partHeads[i / 2] = partHead.getBytes(StandardCharsets.UTF_8);
+                total += partHeads[i / 2].length + ranges[i + 1] - ranges[i];
+            }
+            partHeads[partHeads.length - 1] = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+            total += partHeads[partHeads.length - 1].length;
+            setContentType(ContentTypes.multipartByteranges + "; boundary=" + boundary);
+            setContentLength(total);
+        }
+
+        // from modification time and size, like most servers, so it needs no read of the content
+        static String fileETag(long lastModified, long length) {
+            return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+        }
+
+        public void notFound() throws IOException {
+            htmlBody(Status.notFound, "404 not found");
+        }
+
+        public void forbidden() throws IOException {
+            htmlBody(Status.forbidden,"401 Forbidden");
+        }
+
+        public void badRequest(String err) throws IOException {
+            htmlBody(Status.badRequest, "400 Bad Request: " + err);
+        }
+
+        public void internalServerError(String err) throws IOException {
+            htmlBody(Status.internalServerError, "500 Internal Server Error: " + err);
+        }
+
+        public void payloadTooLarge(String err) throws IOException {
+            htmlBody(Status.payloadTooLarge, "413 Payload Too Large: " + err);
+        }
+
+        // replaces whatever the handler produced with an error page
+        public void error(int code, String err) throws IOException {
+            if (committed) {
+                abandon();
+                return;
+            }
+            release();
+            stream = null;
+            writer = null;
+            headers.remove(Headers.contentLength);
+            headers.remove(Headers.contentRange);
+            htmlBody(code, code + " " + Status.getMessage(code) + ": " + err);
+        }
+    }
+
+    /**
+     * Response compression settings and a pool of Deflaters. Buffered bodies of at least threshold bytes and
+     * streamed bodies of compressible types are encoded with gzip or deflate, whichever the client prefers.
+     * serveFile sends a precompressed .gz sibling that is at least as new as the file, or with a FileCache
+     * a gzip copy of small files built on their first request.
+     */
+    public static class Compression {
+        public int threshold = 1 << 10;
+        public int level = 6;
+        private static final int maxPooled = 32;
+        // gzip frames raw deflate output itself, deflate is the zlib format
+        private final BlockingQueue<Deflater> rawDeflaters = new ArrayBlockingQueue<>(maxPooled);
+        private final BlockingQueue<Deflater> zlibDeflaters = new ArrayBlockingQueue<>(maxPooled);
+
+        public Compression() {
+        }
+
+        public Compression(int threshold, int level) {
+            this.threshold = threshold;
+            this.level = level;
+        }
+
+        // gzip, deflate or null by the q-values of Accept-Encoding, gzip when both are equally acceptable
+        static String negotiate(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return null;
+            }
+            float gzip = -1;
+            float deflate = -1;
+            float any = 0;
+            for (String token : acceptEncoding.split(",")) {
+                String[] parts = token.split(";");
+                float q = 1;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            q = Float.parseFloat(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            q = 0;
+                        }
+                    }
+                }
+                String name = parts[0].trim().toLowerCase(Locale.ROOT);
+                if (name.equals("gzip") || name.equals("x-gzip")) {
+                    gzip = q;
+                } else if (name.equals("deflate")) {
+                    deflate = q;
+                } else if (name.equals("*")) {
+                    any = q;
+                }
+            }
+            gzip = gzip < 0 ? any : gzip;
+            deflate = deflate < 0 ? any : deflate;
+            if (gzip > 0 && gzip >= deflate) {
+                return "gzip";
+            }
+            return deflate > 0 ? "deflate" : null;
+        }
+
+        static boolean compressible(String contentType) {
+            if (contentType == null) {
+                return false;
+            }
+            String type = contentType.toLowerCase(Locale.ROOT);
+            return type.startsWith("text/") || type.contains("json") || type.contains("javascript")
+                || type.contains("xml") || type.contains("svg");
+        }
+
+        Encoder encoder(String encoding) {
+            boolean gzip = encoding.equals("gzip");
+            Deflater deflater = (gzip ? rawDeflaters : zlibDeflaters).poll();
+            if (deflater == null) {
+                deflater = new Deflater(level, gzip);
+            }
+            return new Encoder(this, deflater, gzip);
+        }
+
+        private void release(Deflater deflater, boolean gzip) {
+            deflater.reset();
+            if (!(gzip ? rawDeflaters : zlibDeflaters).offer(deflater)) {
+                deflater.end();
+            }
+        }
+
+        // encodes a body written in pieces; release() must be called when done
+        static class Encoder {
+            private static final byte[] gzipHeader = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+            private final Compression compression;
+            private final Deflater deflater;
+            private final boolean gzip;
+            private final CRC32 crc = new CRC32();
+            private ByteBuffer out = BufferPool.heap.acquire(16 << 10);
+            private boolean started = false;
+
+            Encoder(Compression compression, Deflater deflater, boolean gzip) {
+                this.compression = compression;
+                this.deflater = deflater;
+                this.gzip = gzip;
+            }
+
+            void write(byte[] b, int off, int len, OutputStream to) throws IOException {
+                start(to);
+                if (gzip) {
+                    crc.update(b, off, len);
+                }
+                deflater.setInput(b, off, len);
+                while (!deflater.needsInput()) {
+                    deflate(to, Deflater.NO_FLUSH);
+                }
+            }
+
+            // pushes out everything written so far, for streamed bodies the client should see now
+            void flush(OutputStream to) throws IOException {
+                start(to);
+                while (deflate(to, Deflater.SYNC_FLUSH) == out.capacity()) {
+                    // the output buffer was filled, there may be more
+                }
+            }
+
+            void finish(OutputStream to) throws IOException {
+                start(to);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(to, Deflater.NO_FLUSH);
+                }
+                if (gzip) {
+                    long size = deflater.getBytesRead();
+                    byte[] trailer = new byte[8];
+                    for (int i = 0; i < 4; i++) {
+                        trailer[i] = (byte) (crc.getValue() >>> (i * 8));
+                        trailer[i + 4] = (byte) (size >>> (i * 8));
+                    }
+                    to.write(trailer);
+                }
+            }
+
+            void release() {
+                if (out != null) {
+                    compression.release(deflater, gzip);
+                    BufferPool.heap.release(out);
+                    out = null;
+                }
+            }
+
+            private void start(OutputStream to) throws IOException {
+                if (!started && gzip) {
+                    to.write(gzipHeader);
+                }
+                started = true;
+            }
+
+            private int deflate(OutputStream to, int flush) throws IOException {
+                int n = deflater.deflate(out.array(), 0, out.capacity(), flush);
+                if (n > 0) {
+                    to.write(out.array(), 0, n);
+                }
+                return n;
+            }
+        }
+    }
+
+    /**
+     * Files kept in memory for serveFile, bounded by a byte budget and evicted least recently used first.
+     * Small files are held as one array with their header fields (validators included) and body, larger ones up to maxFileSize are
+     * memory-mapped (counted against the budget though they live in the page cache). An entry is checked against
+     * the file's modification time and length at most once per checkInterval, hits in between don't touch the disk.
+     */
+    public static class FileCache {
+        public long maxBytes = 32 << 20;
+        public int smallFileSize = 64 << 10;
+        public long maxFileSize = 8 << 20;
+        public long checkInterval = 1000;
+
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // guarded by this
+        private long bytes = 0; // guarded by this
+        private final ConcurrentHashMap<String, FutureTask<Entry>> loading = new ConcurrentHashMap<>();
+
+        static class Entry {
+            final long lastModified;
+            final long length;
+            final String etag;
+            final byte[] data; // header fields and the blank line, followed by the body unless it is mapped
+            final MappedByteBuffer mapped;
+            final long weight;
+            volatile long checked;
+            Entry gzip; // guarded by the cache, the entry itself when compressing doesn't pay
+
+            Entry(long lastModified, long length, String etag, byte[] data, MappedByteBuffer mapped, long checked) {
+                this.lastModified = lastModified;
+                this.length = length;
+                this.etag = etag;
+                this.data = data;
+                this.mapped = mapped;
+                this.weight = data.length + (mapped == null ? 0 : length);
+                this.checked = checked;
+            }
+        }
+
+        public FileCache() {
+        }
+
+        public FileCache(long maxBytes, int smallFileSize, long maxFileSize, long checkInterval) {
+            this.maxBytes = maxBytes;
+            this.smallFileSize = smallFileSize;
+            this.maxFileSize = maxFileSize;
+            this.checkInterval = checkInterval;
+        }
+
+        // null when the file doesn't exist or is too large to cache
+        Entry get(String path) throws IOException {
+            long now = System.currentTimeMillis();
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(path);
+            }
+            if (entry != null) {
+                if (now - entry.checked < checkInterval) {
+                    return entry;
+                }
+                File file = new File(path);
+                if (file.lastModified() == entry.lastModified && file.length() == entry.length) {
+                    entry.checked = now;
+                    return entry;
+                }
+                invalidate(path);
+            }
+            // concurrent misses for a path share one read of the file
+            FutureTask<Entry> task = new FutureTask<>(() -> load(path, now));
+            FutureTask<Entry> running = loading.putIfAbsent(path, task);
+            if (running == null) {
+                try {
+                    task.run();
+                } finally {
+                    loading.remove(path, task);
+                }
+                running = task;
+            }
+            return await(running, path);
+        }
+
+        public synchronized void invalidate(String path) {
+            Entry entry = entries.remove(path);
+            if (entry != null) {
+                bytes -= weight(entry);
+            }
+        }
+
+        private static long weight(Entry entry) {
+            return entry.weight + (entry.gzip == null || entry.gzip == entry ? 0 : entry.gzip.weight);
+        }
+
+        // the gzip form of a small entry, built on first use and dropped with it
+        Entry gzip(String path, Entry entry, Compression compression) throws IOException {
+            synchronized (this) {
+                if (entry.gzip != null) {
+                    return entry.gzip;
+                }
+            }
+            int offset = entry.data.length - (int) entry.length;
+            Entry variant = entry;
+            BufferOutputStream compressed = new BufferOutputStream();
+            try {
+                Compression.Encoder encoder = compression.encoder("gzip");
+                try {
+                    encoder.write(entry.data, offset, (int) entry.length, compressed);
+                    encoder.finish(compressed);
+                } finally {
+                    encoder.release();
+                }
+                if (compressed.size() < entry.length) {
+                    String etag = entry.etag.substring(0, entry.etag.length() - 1) + "-gzip\"";
+                    byte[] head = fields(path, compressed.size(), "gzip", etag, entry.lastModified);
+                    byte[] data = Arrays.copyOf(head, head.length + compressed.size());
+                    System.arraycopy(compressed.array(), 0, data, head.length, compressed.size());
+                    variant = new Entry(entry.lastModified, compressed.size(), etag, data, null, entry.checked);
+                }
+            } finally {
+                compressed.release();
+            }
+            synchronized (this) {
+                if (entry.gzip == null) {
+                    entry.gzip = variant;
+                    if (variant != entry && entries.get(path) == entry) {
+                        bytes += variant.weight;
+                    }
+                }
+                return entry.gzip;
+            }
+        }
+
+        private static byte[] fields(String path, long length, String encoding, String etag, long lastModified) {
+            StringBuilder fields = new StringBuilder();
+            fields.append(Headers.contentType).append(": ").append(FileX.getMimeType(path)).append("\r\n");
+            fields.append(Headers.contentLength).append(": ").append(length).append("\r\n");
+            if (encoding == null) {
+                fields.append(Headers.acceptRanges).append(": bytes\r\n");
+            } else {
+                fields.append(Headers.contentEncoding).append(": ").append(encoding).append("\r\n");
+            }
+            fields.append(Headers.etag).append(": ").append(etag).append("\r\n");
+            fields.append(Headers.lastModified).append(": ").append(TimeX.formatHttpDate(lastModified)).append("\r\n\r\n");
+            return fields.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+
+        public synchronized long size() {
+            return bytes;
+        }
 
-                    if (excludeSep) {
-                        outputStream.write(window[0]);
-                    }
-                    for (int i = 0; i < window.length; i++) {
-                        if (i < window.length - 1) {
-                            window[i] = window[i + 1];
-                            continue;
+        private Entry load(String path, long now) throws IOException {
+            File file = new File(path);
+            long lastModified = file.lastModified();
+            long length = file.length();
+            if (!file.isFile() || length > maxFileSize || length > maxBytes) {
+                return null;
+            }
+            String etag = Response.fileETag(lastModified, length);
+            byte[] head = fields(path, length, null, etag, lastModified);
+            Entry entry;
+            try (FileInputStream in = new FileInputStream(file)) {
+                FileChannel channel = in.getChannel();
+                if (length <= smallFileSize) {
+                    byte[] data = Arrays.copyOf(head, head.length + (int) length);
+                    ByteBuffer b = ByteBuffer.wrap(data, head.length, (int) length);
+                    while (b.hasRemaining()) {
+                        if (channel.read(b) < 0) {
+                            return null; // shrank while reading, try again next time
                         }
-                        window[i] = v;
                     }
+                    entry = new Entry(lastModified, length, etag, data, null, now);
+                } else {
+                    // the mapping stays valid after the channel is closed
+                    entry = new Entry(lastModified, length, etag, head, channel.map(FileChannel.MapMode.READ_ONLY, 0, length), now);
                 }
             }
-
-            public void readBytesUntil(OutputStream outputStream,byte[] sep) throws IOException {
-                byte[] window = new byte[sep.length];
-                int n = 0;
-                while (!StrX.bytesEquals(window, sep)) {
-                    int vi = bufferedReader.read();
-                    if (vi == -1) {
-                        break;
-                    }
-                    byte v = (byte) vi;
-                    outputStream.write(v);
-
-                    nLeftToRead--;
-                    if (nLeftToRead <= 0) {
-                        break;
-                    }
-
-                    if (n < window.length) {
-                        window[n] = v;
-                        n++;
+            synchronized (this) {
+                Entry old = entries.put(path, entry);
+                bytes += entry.weight - (old == null ? 0 : weight(old));
+                Iterator<Entry> it = entries.values().iterator();
+                while (bytes > maxBytes && it.hasNext()) {
+                    Entry eldest = it.next();
+                    if (eldest == entry) {
                         continue;
                     }
-
-                    for (int i = 0; i < window.length; i++) {
-                        if (i < window.length - 1) {
-                            window[i] = window[i + 1];
-                            continue;
-                        }
-                        window[i] = v;
-                    }
+                    bytes -= weight(eldest);
+                    it.remove();
                 }
             }
+            return entry;
+        }
+    }
 
-            public void close() throws IOException {
-                bufferedReader.close();
+    /**
+     * Serializes a response head into a pooled buffer. HTTP/1.1 status lines and the well-known header names are
+     * encoded once and copied in, header values take an ASCII fast path.
+     */
+    static class HeadEncoder {
+        private static final byte[][] statusLines = new byte[600][];
+        private static final Map<String, byte[]> names = new HashMap<>();
+        private static final byte[] crlf = {'\r', '\n'};
+        private static final byte[] separator = {':', ' '};
+
+        static {
+            List<String> known = new ArrayList<>(Arrays.asList(HeaderTable.knownNames));
+            known.addAll(Arrays.asList(Headers.acceptRanges, Headers.contentRange, Headers.etag, Headers.lastModified,
+                Headers.contentEncoding, Headers.vary, Headers.allow));
+            for (String name : known) {
+                names.put(name, (name + ": ").getBytes(StandardCharsets.US_ASCII));
             }
-
-            public void delete(){
-                file.delete();
+            // complete before the class is published, so every thread sees all of it
+            for (int code = 100; code < statusLines.length; code++) {
+                statusLines[code] = (Protocol.HTTP_1_1 + " " + code + " " + Status.getMessage(code) + "\r\n").getBytes(StandardCharsets.UTF_8);
             }
         }
 
-        /**
-         ------WebKitFormBoundary1FcV3vleeUX7Akxe
-         Content-Disposition: form-data; name="file"; filename="不对.txt"
-         Content-Type: text/plain
-
-         qwe
-         sdwefr
-         ===
-
-         ------WebKitFormBoundary1FcV3vleeUX7Akxe
-         Content-Disposition: form-data; name="file"; filename="你好.txt"
-         Content-Type: text/plain
-
-         asd
-         qwe
-         ------WebKitFormBoundary1FcV3vleeUX7Akxe
-         Content-Disposition: form-data; name="username"
+        // the head ready for reading; the caller returns it to BufferPool.heap
+        static ByteBuffer encode(String proto, int code, Map<String, String> headers) {
+            return encode(proto, code, headers, true);
+        }
 
-         健康减肥
-         ------WebKitFormBoundary1FcV3vleeUX7Akxe--
-         * @return
-         * @throws Exception
-         */
-        public List<MultipartFormField> parseMultipartForm() throws Exception {
-            // boundary: multipart/form-data; boundary=----WebKitFormBoundaryq0y6gUYIaRVQsaSa
-            String s = headers.get("Content-Type");
-            if (s == null || !s.startsWith("multipart/form-data")) {
-                throw new Exception("invalid content-type for multipart/form-data: " + s);
+        // without the blank line when more header fields follow
+        static ByteBuffer encode(String proto, int code, Map<String, String> headers, boolean end) {
+            ByteBuffer b = BufferPool.heap.acquire(1 << 10);
+            b = put(b, statusLine(proto, code));
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                byte[] name = names.get(entry.getKey());
+                if (name != null) {
+                    b = put(b, name);
+                } else {
+                    b = put(b, entry.getKey());
+                    b = put(b, separator);
+                }
+                b = put(b, entry.getValue());
+                b = put(b, crlf);
             }
-            Log.d(TAG, "parseMultipartForm: ");
-            String boundary = StrX.subAfter(s, "boundary=", "");
-            if (boundary == null || boundary.isEmpty()) {
-                throw new Exception("invalid content-type for multipart/form-data: " + s);
+            if (end) {
+                b = put(b, crlf);
             }
+            b.flip();
+            return b;
+        }
 
-            long l = getContentLength();
-            if (l == 0) {
-                throw new Exception("empty body, content length is 0");
+        static byte[] statusLine(String proto, int code) {
+            if (!Protocol.HTTP_1_1.equals(proto) || code < 100 || code >= statusLines.length) {
+                return (proto + " " + code + " " + Status.getMessage(code) + "\r\n").getBytes(StandardCharsets.UTF_8);
             }
+            return statusLines[code];
+        }
 
-            boundary = "--" + boundary;
-
-            String bodyCacheFile = FileX.joinPath(context.cacheDir, boundary);
-            FileX.truncateFile(bodyCacheFile);
-            FileX.readInputStreamToFile(context.inputStream,l,bodyCacheFile);
-
-            MultipartFormBody reader = new MultipartFormBody(bodyCacheFile);
-            reader.readStringUntil(boundary, true);
-            List<MultipartFormField> list = new ArrayList<>();
-            while (true) {
-                String prefix=reader.readStringUntil("\r\n", true);
-                if (prefix != null && prefix.equals("--")) {
-                    break;
-                }
-
-                MultipartFormField field = new MultipartFormField();
-                //headers
-                String line;
-                while (!(line = reader.readStringUntil("\r\n",true)).isEmpty()) {
-                    if (line.startsWith("Content-Disposition")) {
-                        line = StrX.subAfter(line, "; ", "");
-                        String[] ss = line.split("; ");
-                        for (int i = 0; i < ss.length; i++) {
-                            String[] kv = ss[i].split("=");
-                            if (kv.length != 2) {
-                                continue;
-                            }
-                            if (kv[0].equals("name")) {
-                                field.name = StrX.trimBoth(kv[1], "\"");
-                            } else if (kv[0].equals("filename")) {
-                                field.filename = StrX.trimBoth(kv[1], "\"");
-                                field.filename = URLDecoder.decode(field.filename, "UTF-8");
-                            }
-                        }
-                        continue;
-                    }
-                    // content type
-                }
-
-                //body
-                if (field.filename == null || field.filename.isEmpty()) {
-                    field.value = reader.readStringUntil(boundary, true);
-                    list.add(field);
-                    continue;
-                }
+        private static ByteBuffer put(ByteBuffer b, byte[] bytes) {
+            b = ensure(b, bytes.length);
+            b.put(bytes);
+            return b;
+        }
 
-                String dst = FileX.joinPath(context.cacheDir, boundary + field.filename);
-                File fo = new File(dst);
-                if (fo.exists()) {
-                    fo.delete();
+        private static ByteBuffer put(ByteBuffer b, String s) {
+            b = ensure(b, s.length());
+            int start = b.position();
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    b.position(start);
+                    return put(b, s.getBytes(StandardCharsets.UTF_8));
                 }
-                fo.createNewFile();
-                FileOutputStream fileOutputStream=new FileOutputStream(fo);
-                BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(fileOutputStream));
-                reader.readBytesUntil(bufferedWriter,("\r\n"+boundary).getBytes("UTF-8"),true);
-                bufferedWriter.flush();
-                bufferedWriter.close();
-                fileOutputStream.close();
-                field.file = fo;
-                field.length = fo.length();
-
-                list.add(field);
+                b.put((byte) c);
             }
-            reader.close();
-            reader.delete();
-
-            return list;
+            return b;
         }
 
-        public String getContentType() {
-            return headers.get(Headers.contentType);
+        private static ByteBuffer ensure(ByteBuffer b, int n) {
+            if (b.remaining() >= n) {
+                return b;
+            }
+            ByteBuffer bigger = BufferPool.heap.acquire(Math.max(b.capacity() * 2, b.position() + n));
+            b.flip();
+            bigger.put(b);
+            BufferPool.heap.release(b);
+            return bigger;
         }
     }
 
-    public static class Response {
-        public int statusCode = Status.ok;
-        public String proto = Protocol.HTTP_1_1;
+    public static class Headers {
+        public static final String contentLength = "Content-Length";
+        public static final String contentType = "Content-Type";
+        public static final String connection = "Connection";
+        public static final String transferEncoding = "Transfer-Encoding";
+        public static final String host = "Host";
+        public static final String accept = "Accept";
+        public static final String acceptEncoding = "Accept-Encoding";
+        public static final String acceptLanguage = "Accept-Language";
+        public static final String userAgent = "User-Agent";
+        public static final String cookie = "Cookie";
+        public static final String authorization = "Authorization";
+        public static final String cacheControl = "Cache-Control";
+        public static final String range = "Range";
+        public static final String ifNoneMatch = "If-None-Match";
+        public static final String ifModifiedSince = "If-Modified-Since";
+        public static final String ifRange = "If-Range";
+        public static final String referer = "Referer";
+        public static final String origin = "Origin";
+        public static final String expect = "Expect";
+        public static final String upgrade = "Upgrade";
+        public static final String acceptRanges = "Accept-Ranges";
+        public static final String contentRange = "Content-Range";
+        public static final String etag = "ETag";
+        public static final String lastModified = "Last-Modified";
+        public static final String contentEncoding = "Content-Encoding";
+        public static final String vary = "Vary";
+        public static final String allow = "Allow";
+    }
 
-        public Map<String, String> headers = new HashMap<>();
+    /**
+     * Request headers with case-insensitive names. Well-known names are matched to small ids while parsing,
+     * values stay as byte ranges of the head and are decoded on first access. A name may occur several times,
+     * get() returns the first value and getAll() every value.
+     */
+    public static class HeaderTable extends AbstractMap<String, String> {
+        private static final String[] knownNames = {Headers.host, Headers.connection, Headers.contentLength, Headers.contentType,
+            Headers.transferEncoding, Headers.accept, Headers.acceptEncoding, Headers.acceptLanguage, Headers.userAgent,
+            Headers.cookie, Headers.authorization, Headers.cacheControl, Headers.range, Headers.ifNoneMatch,
+            Headers.ifModifiedSince, Headers.ifRange, Headers.referer, Headers.origin, Headers.expect, Headers.upgrade};
+        // id + 1 of the known names, open addressing on the case-insensitive hash
+        private static final int[] slots = new int[64];
+
+        static {
+            for (int id = 0; id < knownNames.length; id++) {
+                int i = hash(knownNames[id]) & (slots.length - 1);
+                while (slots[i] != 0) {
+                    i = (i + 1) & (slots.length - 1);
+                }
+                slots[i] = id + 1;
+            }
+        }
 
-        private ByteArrayOutputStream body;
-        private FileInputStream bodyInputStream;
+        private byte[] data;
+        private int base;
+        private int size = 0;
+        private int[] ids; // known name id, -1 for other names
+        private int[] ranges; // name start, name end, value start, value end in data
+        private String[] names; // names of the other headers, decoded lazily
+        private String[] values; // decoded lazily
+
+        // the header lines of the head, copied once because the connection buffer is reused for the body
+        void source(byte[] b, int from, int to) {
+            data = Arrays.copyOfRange(b, from, to);
+            base = from;
+        }
 
-        private final Context context;
+        void addRange(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            int i = append();
+            ids[i] = id(data, nameStart - base, nameEnd - base);
+            int r = i * 4;
+            ranges[r] = nameStart - base;
+            ranges[r + 1] = nameEnd - base;
+            ranges[r + 2] = valueStart - base;
+            ranges[r + 3] = valueEnd - base;
+        }
 
-        public Response(Context context) {
-            this.context = context;
+        // adds a value without replacing the existing ones
+        public void add(String name, String value) {
+            int i = append();
+            ids[i] = id(name);
+            names[i] = name;
+            values[i] = value;
         }
 
-        private void flushData() throws IOException {
-            context.outputStream.write(proto.getBytes("UTF-8"));
-            context.outputStream.write(' ');
-            context.outputStream.write(String.valueOf(statusCode).getBytes("UTF-8"));
-            context.outputStream.write(' ');
-            context.outputStream.write(Status.getMessage(statusCode).getBytes("UTF-8"));
-            //header
-            if (body == null || body.size() == 0) {
-                headers.put(Headers.contentLength, "0");
-            } else {
-                headers.put(Headers.contentLength, String.valueOf(body.size()));
+        public List<String> getAll(String name) {
+            List<String> list = new ArrayList<>(1);
+            int id = id(name);
+            for (int i = 0; i < size; i++) {
+                if (matches(i, id, name)) {
+                    list.add(value(i));
+                }
             }
+            return list;
+        }
 
-            context.outputStream.write("\r\n\r\n".getBytes("UTF-8"));
+        @Override
+        public String get(Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : value(i);
+        }
 
-            //body
-            if (body != null && body.size() > 0) {
-                context.outputStream.write(body.toByteArray());
-            } else if (bodyInputStream != null) {
-                FileChannel fi = bodyInputStream.getChannel();
-                WritableByteChannel fo = Channels.newChannel(context.outputStream);
-                fi.transferTo(0, fi.size(), fo);
-            }
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
 
-            context.outputStream.write("\r\n\r\n".getBytes("UTF-8"));
+        @Override
+        public String put(String key, String value) {
+            String old = remove(key);
+            add(key, value);
+            return old;
         }
 
-        public void bytes(int code, byte[] bytes) throws IOException {
-            statusCode = code;
-            if (body == null) {
-                body = new ByteArrayOutputStream();
+        @Override
+        public String remove(Object key) {
+            if (!(key instanceof String)) {
+                return null;
             }
-            body.write(bytes);
+            String name = (String) key;
+            int id = id(name);
+            String old = null;
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (matches(i, id, name)) {
+                    if (old == null) {
+                        old = value(i);
+                    }
+                    continue;
+                }
+                if (n != i) {
+                    ids[n] = ids[i];
+                    System.arraycopy(ranges, i * 4, ranges, n * 4, 4);
+                    names[n] = names[i];
+                    values[n] = values[i];
+                }
+                n++;
+            }
+            for (int i = n; i < size; i++) {
+                names[i] = null;
+                values[i] = null;
+            }
+            size = n;
+            return old;
         }
 
-        public void string(int code, String s) throws IOException {
-            if (s == null) {
-                s = "";
+        @Override
+        public void clear() {
+            for (int i = 0; i < size; i++) {
+                names[i] = null;
+                values[i] = null;
             }
-            setContentType(ContentTypes.textPlain);
-            bytes(code, s.getBytes("UTF-8"));
+            size = 0;
         }
 
-        public void html(int code, String s) throws IOException {
-            if (s == null) {
-                s = "";
+        // one entry per distinct name, with its first value
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            Set<Entry<String, String>> set = new LinkedHashSet<>();
+            for (int i = 0; i < size; i++) {
+                String name = name(i);
+                if (indexOf(name) == i) {
+                    set.add(new SimpleImmutableEntry<>(name, value(i)));
+                }
             }
-            setContentType(ContentTypes.textHtml);
-            bytes(code, s.getBytes("UTF-8"));
+            return set;
         }
 
-        public void htmlBody(int code, String s) throws IOException {
-            if (s == null) {
-                s = "";
+        private int append() {
+            if (ids == null) {
+                ids = new int[16];
+                ranges = new int[64];
+                names = new String[16];
+                values = new String[16];
+            } else if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                ranges = Arrays.copyOf(ranges, size * 8);
+                names = Arrays.copyOf(names, size * 2);
+                values = Arrays.copyOf(values, size * 2);
             }
-            html(code, "<!DOCTYPE html><html lang=\"en\"><head><meta charset=\"UTF-8\"><meta name=\"viewport\" content=\"width=device-width,initial-scale=1\"><title>Information</title></head><body>" + s + "</body></html>");
+            return size++;
         }
 
-        public void json(int code, String s) throws IOException {
-            if (s == null) {
-                s = "";
+        private int indexOf(Object key) {
+            if (!(key instanceof String)) {
+                return -1;
             }
-            setContentType(ContentTypes.applicationJson);
-            bytes(code, s.getBytes("UTF-8"));
+            String name = (String) key;
+            int id = id(name);
+            for (int i = 0; i < size; i++) {
+                if (matches(i, id, name)) {
+                    return i;
+                }
+            }
+            return -1;
         }
 
-        public void setContentType(String s) {
-            headers.put(Headers.contentType, s);
+        private boolean matches(int i, int id, String name) {
+            if (id >= 0 || ids[i] >= 0) {
+                return ids[i] == id;
+            }
+            if (names[i] != null) {
+                return names[i].equalsIgnoreCase(name);
+            }
+            int from = ranges[i * 4];
+            int to = ranges[i * 4 + 1];
+            if (to - from != name.length()) {
+                return false;
+            }
+            for (int k = 0; k < name.length(); k++) {
+                if (lower(data[from + k]) != lower(name.charAt(k))) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        public void setContentLength(long l) {
-            headers.put(Headers.contentLength, String.valueOf(l));
+        private String name(int i) {
+            if (ids[i] >= 0 && names[i] == null) {
+                return knownNames[ids[i]];
+            }
+            if (names[i] == null) {
+                names[i] = new String(data, ranges[i * 4], ranges[i * 4 + 1] - ranges[i * 4], StandardCharsets.ISO_8859_1);
+            }
+            return names[i];
         }
 
-        public void serveFile(String path) throws IOException {
-            setContentType(FileX.getMimeType(path));
-            File file = new File(path);
-            if (!file.exists()) {
-                notFound();
-                return;
+        private String value(int i) {
+            if (values[i] == null) {
+                int from = ranges[i * 4 + 2];
+                values[i] = new String(data, from, ranges[i * 4 + 3] - from, StandardCharsets.UTF_8);
             }
-            setContentLength(file.length());
-            bodyInputStream = new FileInputStream(file);
+            return values[i];
         }
 
-        public void notFound() throws IOException {
-            htmlBody(Status.notFound, "404 not found");
+        private static int lower(int c) {
+            return c >= 'A' && c <= 'Z' ? c + 32 : c;
         }
 
-        public void forbidden() throws IOException {
-            htmlBody(Status.forbidden,"401 Forbidden");
+        private static int hash(String s) {
+            int h = 0;
+            for (int i = 0; i < s.length(); i++) {
+                h = 31 * h + lower(s.charAt(i));
+            }
+            return h ^ (h >>> 7);
         }
 
-        public void badRequest(String err) throws IOException {
-            htmlBody(Status.badRequest, "400 Bad Request: " + err);
+        private static int id(String name) {
+            int i = hash(name) & (slots.length - 1);
+            while (slots[i] != 0) {
+                int id = slots[i] - 1;
+                if (knownNames[id].equalsIgnoreCase(name)) {
+                    return id;
+                }
+                i = (i + 1) & (slots.length - 1);
+            }
+            return -1;
         }
 
-        public void internalServerError(String err) throws IOException {
-            htmlBody(Status.internalServerError, "500 Internal Server Error: " + err);
+        private static int id(byte[] b, int from, int to) {
+            int h = 0;
+            for (int k = from; k < to; k++) {
+                h = 31 * h + lower(b[k]);
+            }
+            int i = (h ^ (h >>> 7)) & (slots.length - 1);
+            while (slots[i] != 0) {
+                int id = slots[i] - 1;
+                String known = knownNames[id];
+                if (known.length() == to - from) {
+                    int k = 0;
+                    while (k < known.length() && lower(known.charAt(k)) == lower(b[from + k])) {
+                        k++;
+                    }
+                    if (k == known.length()) {
+                        return id;
+                    }
+                }
+                i = (i + 1) & (slots.length - 1);
+            }
+            return -1;
         }
     }
 
-    public static class Headers {
-        public static final String contentLength = "Content-Length";
-        public static final String contentType = "Content-Type";
-    }
-
     public static class ContentTypes {
         public static final String textPlain = "text/plain";
         public static final String applicationJson = "application/json";
         public static final String textHtml = "text/html";
         public static final String textJavaScript = "text/javascript";
         public static final String applicationFormUrlEncoded = "application/x-www-form-urlencoded";
+        public static final String multipartByteranges = "multipart/byteranges";
     }
 
     public static class Status {
         public static final int ok = 200;
+        public static final int noContent = 204;
+        public static final int partialContent = 206;
+        public static final int notModified = 304;
         public static final int badRequest = 400;
         public static final int unauthorized = 401;
         public static final int forbidden = 403;
         public static final int notFound = 404;
         public static final int methodNotAllowed = 405;
         public static final int internalServerError = 500;
+        public static final int payloadTooLarge = 413;
+        public static final int rangeNotSatisfiable = 416;
+        public static final int serviceUnavailable = 503;
 
         public static String getMessage(int code) {
             switch (code) {
@@ -771,6 +4194,18 @@ public class Gin {
                     return "Forbidden";
                 case unauthorized:
                     return "Unauthorized";
+                case payloadTooLarge:
+                    return "Payload Too Large";
+                case noContent:
+                    return "No Content";
+                case partialContent:
+                    return "Partial Content";
+                case notModified:
+                    return "Not Modified";
+                case rangeNotSatisfiable:
+                    return "Range Not Satisfiable";
+                case serviceUnavailable:
+                    return "Service Unavailable";
             }
             return "Unknown status";
         }
@@ -792,20 +4227,172 @@ public class Gin {
         public static final String options = "OPTIONS";
         public static final String trace = "TRACE";
 
-        public static boolean validate(String method) {
-            switch (method) {
-                case get:
-                case post:
-                case put:
-                case patch:
-                case head:
-                case delete:
-                case connect:
-                case options:
-                case trace:
-                    return true;
+        public static boolean validate(String method) {
+            switch (method) {
+                case get:
+                case post:
+                case put:
+                case patch:
+                case head:
+                case delete:
+                case connect:
+                case options:
+                case trace:
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    // a failure that is answered with its status code instead of 500
+    public static class HttpException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public final int status;
+
+        public HttpException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Limits for parseMultipartForm. Parts up to memoryThreshold bytes stay in memory, larger ones are written
+     * to cacheDir. A part, a request or all requests together receiving more than their limit are answered with 413.
+     */
+    public static class MultipartConfig {
+        public long memoryThreshold = 16 << 10;
+        public long maxPartSize = Long.MAX_VALUE;
+        public long maxRequestSize = Long.MAX_VALUE;
+        public long maxInFlight = Long.MAX_VALUE;
+
+        private final AtomicLong inFlight = new AtomicLong();
+
+        public MultipartConfig() {
+        }
+
+        public MultipartConfig(long memoryThreshold, long maxPartSize, long maxRequestSize, long maxInFlight) {
+            if (memoryThreshold > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("memory threshold too large: " + memoryThreshold);
+            }
+            this.memoryThreshold = memoryThreshold;
+            this.maxPartSize = maxPartSize;
+            this.maxRequestSize = maxRequestSize;
+            this.maxInFlight = maxInFlight;
+        }
+
+        public long inFlight() {
+            return inFlight.get();
+        }
+
+        boolean reserve(long n) {
+            long v = inFlight.addAndGet(n);
+            if (v > maxInFlight || v < 0) {
+                inFlight.addAndGet(-n);
+                return false;
+            }
+            return true;
+        }
+
+        void release(long n) {
+            inFlight.addAndGet(-n);
+        }
+    }
+
+    public static class RejectionPolicies {
+        // answer 503 and close the connection
+        public static final int serviceUnavailable = 0;
+        // serve one request on the accepting thread and close the connection, which slows down accepting; 503 in nio mode
+        public static final int callerRuns = 1;
+        // close the connection without a response
+        public static final int close = 2;
+    }
+
+    public static class Workers {
+        public static final int defaultMaxThreads = 256;
+
+        // threads are started on demand up to maxThreads and stop after a minute idle, further tasks are rejected
+        public static ExecutorService cached(int maxThreads) {
+            return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        // platform threads with a bounded queue, further tasks are rejected
+        public static ExecutorService fixed(int threads, int queueSize) {
+            BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>();
+            return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        public static ExecutorService workStealing(int parallelism, int maxPending) {
+            return limit(Executors.newWorkStealingPool(parallelism), maxPending);
+        }
+
+        // one virtual thread per task (Java 21+), with at most maxConcurrent tasks in flight
+        public static ExecutorService virtual(int maxConcurrent) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                return limit(executor, maxConcurrent);
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("virtual threads are not available on this runtime", e);
+            }
+        }
+
+        // rejects tasks once maxInFlight of them are queued or running
+        public static ExecutorService limit(ExecutorService executor, int maxInFlight) {
+            return new LimitedExecutor(executor, maxInFlight);
+        }
+
+        private static class LimitedExecutor extends AbstractExecutorService {
+            private final ExecutorService executor;
+            private final Semaphore permits;
+
+            LimitedExecutor(ExecutorService executor, int maxInFlight) {
+                this.executor = executor;
+                this.permits = new Semaphore(maxInFlight);
+            }
+
+            @Override
+            public void execute(Runnable command) {
+                if (!permits.tryAcquire()) {
+                    throw new RejectedExecutionException("too many tasks in flight");
+                }
+                try {
+                    executor.execute(() -> {
+                        try {
+                            command.run();
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void shutdown() {
+                executor.shutdown();
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                return executor.shutdownNow();
+            }
+
+            @Override
+            public boolean isShutdown() {
+                return executor.isShutdown();
+            }
+
+            @Override
+            public boolean isTerminated() {
+                return executor.isTerminated();
+            }
+
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+                return executor.awaitTermination(timeout, unit);
             }
-            return false;
         }
     }
 
@@ -813,6 +4400,31 @@ public class Gin {
         void handle(Context context) throws Exception;
     }
 
+    public static class TimeX {
+        // SimpleDateFormat isn't thread-safe
+        private static final ThreadLocal<SimpleDateFormat> httpDate = new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+                f.setTimeZone(TimeZone.getTimeZone("GMT"));
+                return f;
+            }
+        };
+
+        public static String formatHttpDate(long millis) {
+            return httpDate.get().format(new Date(millis));
+        }
+
+        // milliseconds, -1 if s is not an HTTP date
+        public static long parseHttpDate(String s) {
+            try {
+                return httpDate.get().parse(s).getTime();
+            } catch (ParseException e) {
+                return -1;
+            }
+        }
+    }
+
     public static class StrX {
         public static String createQuery(Map<String, String> m) throws UnsupportedEncodingException {
             StringBuilder s = new StringBuilder();
@@ -1275,10 +4887,17 @@ public class Gin {
             FileChannel fileChannel = fileOutputStream.getChannel();
             ReadableByteChannel readableByteChannel = Channels.newChannel(inputStream);
 
-            ByteBuffer byteBuffer = ByteBuffer.allocate(4 << 10);
-            while (readableByteChannel.read(byteBuffer) > 0) {
-                byteBuffer.flip();
-                fileChannel.write(byteBuffer);
+            ByteBuffer byteBuffer = BufferPool.heap.acquire(64 << 10);
+            try {
+                while (readableByteChannel.read(byteBuffer) > 0) {
+                    byteBuffer.flip();
+                    while (byteBuffer.hasRemaining()) {
+                        fileChannel.write(byteBuffer);
+                    }
+                    byteBuffer.clear();
+                }
+            } finally {
+                BufferPool.heap.release(byteBuffer);
             }
 
             fileOutputStream.close();
@@ -1287,29 +4906,567 @@ public class Gin {
     }
 
     public static class DSL {
+        /**
+         * Encodes a rendered tree to UTF-8 in a pooled buffer and writes it to out whenever the buffer fills up,
+         * so a tree is serialized in one pass without intermediate Strings. ASCII runs are copied char by char.
+         */
+        public static class HtmlWriter implements Closeable {
+            private final OutputStream out;
+            private ByteBuffer buffer;
+            private byte[] b;
+            private int pos = 0;
+            private final Map<String, ?> values; // filling the slots of a template, null for a plain tree
+            private List<byte[]> segments; // while compiling a template, out is then a BufferOutputStream
+            private List<Slot> slots;
+
+            public HtmlWriter(OutputStream out) {
+                this(out, null);
+            }
+
+            HtmlWriter(OutputStream out, Map<String, ?> values) {
+                this.out = out;
+                this.values = values;
+                this.buffer = BufferPool.heap.acquire(8 << 10);
+                this.b = buffer.array();
+            }
+
+            boolean compiling() {
+                return slots != null;
+            }
+
+            // ends the static segment when compiling, otherwise fills the slot from the values if there are any
+            void slot(Slot slot) throws IOException {
+                if (slots != null) {
+                    segments.add(cut());
+                    slots.add(slot);
+                    return;
+                }
+                if (values != null) {
+                    slot.fill(this, values);
+                }
+            }
+
+            private byte[] cut() throws IOException {
+                flush();
+                BufferOutputStream compiled = (BufferOutputStream) out;
+                byte[] segment = Arrays.copyOf(compiled.array(), compiled.size());
+                compiled.reset();
+                return segment;
+            }
+
+            public HtmlWriter raw(char c) throws IOException {
+                if (pos == b.length) {
+                    flush();
+                }
+                b[pos++] = (byte) c;
+                return this;
+            }
+
+            public HtmlWriter write(byte[] bytes) throws IOException {
+                return write(bytes, 0, bytes.length);
+            }
+
+            public HtmlWriter write(byte[] bytes, int off, int len) throws IOException {
+                if (len > b.length - pos) {
+                    flush();
+                    if (len >= b.length) {
+                        out.write(bytes, off, len);
+                        return this;
+                    }
+                }
+                System.arraycopy(bytes, off, b, pos, len);
+                pos += len;
+                return this;
+            }
+
+            // s as UTF-8
+            public HtmlWriter text(String s) throws IOException {
+                return text(s, 0, s.length());
+            }
+
+            public HtmlWriter text(String s, int from, int to) throws IOException {
+                int i = from;
+                while (i < to) {
+                    // ASCII fast path
+                    int limit = Math.min(to, i + b.length - pos);
+                    while (i < limit) {
+                        char c = s.charAt(i);
+                        if (c >= 0x80) {
+                            break;
+                        }
+                        b[pos++] = (byte) c;
+                        i++;
+                    }
+                    if (i == to) {
+                        break;
+                    }
+                    if (pos > b.length - 4) {
+                        flush();
+                    }
+                    char c = s.charAt(i++);
+                    if (c < 0x80) {
+                        b[pos++] = (byte) c;
+                    } else if (c < 0x800) {
+                        b[pos++] = (byte) (0xc0 | (c >> 6));
+                        b[pos++] = (byte) (0x80 | (c & 0x3f));
+                    } else if (Character.isHighSurrogate(c) && i < to && Character.isLowSurrogate(s.charAt(i))) {
+                        int cp = Character.toCodePoint(c, s.charAt(i++));
+                        b[pos++] = (byte) (0xf0 | (cp >> 18));
+                        b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                        b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                        b[pos++] = (byte) (0x80 | (cp & 0x3f));
+                    } else if (Character.isSurrogate(c)) {
+                        b[pos++] = '?'; // unpaired, like String.getBytes
+                    } else {
+                        b[pos++] = (byte) (0xe0 | (c >> 12));
+                        b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                        b[pos++] = (byte) (0x80 | (c & 0x3f));
+                    }
+                }
+                return this;
+            }
+
+            private static final byte[][] textEscapes = new byte[128][];
+            private static final byte[][] attributeEscapes = new byte[128][];
+
+            static {
+                textEscapes['&'] = "&amp;".getBytes(StandardCharsets.US_ASCII);
+                textEscapes['<'] = "&lt;".getBytes(StandardCharsets.US_ASCII);
+                textEscapes['>'] = "&gt;".getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(textEscapes, 0, attributeEscapes, 0, textEscapes.length);
+                attributeEscapes['"'] = "&quot;".getBytes(StandardCharsets.US_ASCII);
+                attributeEscapes['\''] = "&#39;".getBytes(StandardCharsets.US_ASCII);
+            }
+
+            // s as text content, with the markup characters escaped
+            public HtmlWriter escaped(String s) throws IOException {
+                return escape(s, textEscapes);
+            }
+
+            // s as a double-quoted attribute value
+            public HtmlWriter attributeValue(String s) throws IOException {
+                raw('"');
+                escape(s, attributeEscapes);
+                return raw('"');
+            }
+
+            // runs without anything to escape are copied in bulk
+            private HtmlWriter escape(String s, byte[][] table) throws IOException {
+                int n = s.length();
+                int run = 0;
+                for (int i = 0; i < n; i++) {
+                    char c = s.charAt(i);
+                    if (c < 128 && table[c] != null) {
+                        if (i > run) {
+                            text(s, run, i);
+                        }
+                        write(table[c]);
+                        run = i + 1;
+                    }
+                }
+                if (run < n) {
+                    text(s, run, n);
+                }
+                return this;
+            }
+
+            public void flush() throws IOException {
+                if (pos > 0) {
+                    out.write(b, 0, pos);
+                    pos = 0;
+                }
+            }
+
+            // flushes and returns the buffer, out stays open
+            @Override
+            public void close() throws IOException {
+                if (buffer == null) {
+                    return;
+                }
+                try {
+                    flush();
+                } finally {
+                    BufferPool.heap.release(buffer);
+                    buffer = null;
+                    b = null;
+                }
+            }
+        }
+
+        /**
+         * A tree compiled once with its static markup pre-encoded. Only the slots are evaluated per render, from the
+         * values given to render(), so a mostly static page costs a few array copies. Immutable and shareable.
+         */
+        public static class Template {
+            private final byte[][] segments; // one more than slots, segments[i] comes before slots[i]
+            private final Slot[] slots;
+
+            private Template(byte[][] segments, Slot[] slots) {
+                this.segments = segments;
+                this.slots = slots;
+            }
+
+            public static Template compile(Element root) {
+                BufferOutputStream out = new BufferOutputStream();
+                try (HtmlWriter w = new HtmlWriter(out)) {
+                    w.segments = new ArrayList<>();
+                    w.slots = new ArrayList<>();
+                    root.renderTo(w);
+                    w.segments.add(w.cut());
+                    return new Template(w.segments.toArray(new byte[0][]), w.slots.toArray(new Slot[0]));
+                } catch (IOException e) {
+                    throw new RuntimeException(e); // nothing to fail writing to memory
+                } finally {
+                    out.release();
+                }
+            }
+
+            public void render(OutputStream out, Map<String, ?> values) throws IOException {
+                try (HtmlWriter w = new HtmlWriter(out, values)) {
+                    w.write(segments[0]);
+                    for (int i = 0; i < slots.length; i++) {
+                        slots[i].fill(w, values);
+                        w.write(segments[i + 1]);
+                    }
+                }
+            }
+        }
+
+        // a part of a tree filled per render of a Template; renders nothing in a plain tree
+        public abstract static class Slot extends Element {
+            protected final String name;
+
+            protected Slot(String name) {
+                super("");
+                this.name = name;
+            }
+
+            @Override
+            protected void render(HtmlWriter w) throws IOException {
+                w.slot(this);
+            }
+
+            protected abstract void fill(HtmlWriter w, Map<String, ?> values) throws IOException;
+        }
+
+        // the value as text, or rendered if it is an Element
+        public static class ValueSlot extends Slot {
+            public ValueSlot(String name) {
+                super(name);
+            }
+
+            @Override
+            protected void fill(HtmlWriter w, Map<String, ?> values) throws IOException {
+                Object v = values.get(name);
+                if (v instanceof Element) {
+                    ((Element) v).renderTo(w);
+                } else if (v != null) {
+                    w.escaped(v.toString());
+                }
+            }
+        }
+
+        // an element per item of the List value
+        public static class ListSlot<T> extends Slot {
+            private final ElementTypeHandler<T> handler;
+
+            public ListSlot(String name, ElementTypeHandler<T> handler) {
+                super(name);
+                this.handler = handler;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected void fill(HtmlWriter w, Map<String, ?> values) throws IOException {
+                List<T> list = (List<T>) values.get(name);
+                if (list == null) {
+                    return;
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    Element element = handler.handle(list.get(i));
+                    if (element != null) {
+                        element.renderTo(w);
+                    }
+                }
+            }
+        }
+
+        // name=value inside a tag, left out when there is no value
+        public static class AttributeSlot extends Slot {
+            private final String attribute;
+
+            public AttributeSlot(String attribute, String name) {
+                super(name);
+                this.attribute = attribute;
+            }
+
+            @Override
+            protected void fill(HtmlWriter w, Map<String, ?> values) throws IOException {
+                Object v = values.get(name);
+                if (v != null) {
+                    w.raw(' ').text(attribute).raw('=').attributeValue(v.toString());
+                }
+            }
+        }
+
+        /**
+         * Rendered fragments by key, bounded by the total size of their bytes and evicted least recently used first.
+         * A missing or expired fragment is rendered by one caller while the others wait for it, or get the expired
+         * bytes if there are any, so a popular fragment is never rendered by many requests at once.
+         */
+        public static class FragmentCache {
+            public final long maxBytes;
+            private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // guarded by this
+            private long bytes = 0; // guarded by this
+            private final ConcurrentHashMap<String, FutureTask<byte[]>> rendering = new ConcurrentHashMap<>();
+
+            private static class Entry {
+                final byte[] bytes;
+                final long expires;
+                final long weight;
+
+                Entry(String key, byte[] bytes, long expires) {
+                    this.bytes = bytes;
+                    this.expires = expires;
+                    this.weight = bytes.length + key.length() * 2L + 64;
+                }
+            }
+
+            public FragmentCache(long maxBytes) {
+                this.maxBytes = maxBytes;
+            }
+
+            byte[] get(String key, long ttl, Map<String, ?> values, FragmentHandler handler) throws IOException {
+                Entry entry;
+                synchronized (this) {
+                    entry = entries.get(key);
+                }
+                long now = System.currentTimeMillis();
+                if (entry != null && entry.expires > now) {
+                    return entry.bytes;
+                }
+                FutureTask<byte[]> task = new FutureTask<>(() -> {
+                    byte[] rendered = render(handler.handle(), values);
+                    put(key, new Entry(key, rendered, System.currentTimeMillis() + ttl));
+                    return rendered;
+                });
+                FutureTask<byte[]> running = rendering.putIfAbsent(key, task);
+                if (running == null) {
+                    try {
+                        task.run();
+                    } finally {
+                        rendering.remove(key, task);
+                    }
+                    running = task;
+                } else if (entry != null) {
+                    return entry.bytes; // stale while another request renders it
+                }
+                return await(running, "fragment " + key);
+            }
+
+            private static byte[] render(Element element, Map<String, ?> values) throws IOException {
+                BufferOutputStream out = new BufferOutputStream();
+                try {
+                    if (element != null) {
+                        try (HtmlWriter w = new HtmlWriter(out, values)) {
+                            element.renderTo(w);
+                        }
+                    }
+                    return Arrays.copyOf(out.array(), out.size());
+                } finally {
+                    out.release();
+                }
+            }
+
+            private synchronized void put(String key, Entry entry) {
+                if (entry.weight > maxBytes) {
+                    return;
+                }
+                Entry old = entries.put(key, entry);
+                bytes += entry.weight - (old == null ? 0 : old.weight);
+                Iterator<Entry> it = entries.values().iterator();
+                while (bytes > maxBytes && it.hasNext()) {
+                    Entry eldest = it.next();
+                    if (eldest == entry) {
+                        continue;
+                    }
+                    bytes -= eldest.weight;
+                    it.remove();
+                }
+            }
+
+            public synchronized void invalidate(String key) {
+                Entry entry = entries.remove(key);
+                if (entry != null) {
+                    bytes -= entry.weight;
+                }
+            }
+
+            public synchronized void clear() {
+                entries.clear();
+                bytes = 0;
+            }
+
+            public synchronized long size() {
+                return bytes;
+            }
+        }
+
+        public interface FragmentHandler {
+            Element handle();
+        }
+
+        // the subtree built by handler, rendered once per ttl and then copied from the cache; a slot in a Template
+        public static class Fragment extends Slot {
+            private final FragmentCache cache;
+            private final long ttl;
+            private final FragmentHandler handler;
+
+            public Fragment(FragmentCache cache, String key, long ttl, FragmentHandler handler) {
+                super(key);
+                this.cache = cache;
+                this.ttl = ttl;
+                this.handler = handler;
+            }
+
+            @Override
+            protected void render(HtmlWriter w) throws IOException {
+                if (w.compiling()) {
+                    w.slot(this);
+                    return;
+                }
+                fill(w, w.values);
+            }
+
+            @Override
+            protected void fill(HtmlWriter w, Map<String, ?> values) throws IOException {
+                w.write(cache.get(name, ttl, values, handler));
+            }
+        }
+
+        public static final FragmentCache fragments = new FragmentCache(16 << 20);
+
+        private static final String[] noAttributes = new String[0];
+        private static final Element[] noChildren = new Element[0];
+
         public static class Element {
             protected String tagName;
-            protected Map<String, String> attributes = new LinkedHashMap<>();
+            // name, value pairs in the order set, allocated by the first attribute
+            private String[] attributes = noAttributes;
+            private int attributeCount = 0;
+            protected List<AttributeSlot> attributeSlots;
 
             public Element(String tagName) {
                 this.tagName = tagName;
             }
 
+            /**
+             * The markup as a String. Subclasses used to override this to render themselves and still may,
+             * their output is taken as is wherever the element is rendered; render(HtmlWriter) is the cheaper hook.
+             */
             protected String marshal() {
-                StringBuilder builder = new StringBuilder();
-                builder.append("<").append(tagName);
-                for (Map.Entry<String, String> entry : attributes.entrySet()) {
-                    builder.append(" ").append(entry.getKey()).append("=").append(entry.getValue());
+                BufferOutputStream out = new BufferOutputStream();
+                try {
+                    try (HtmlWriter w = new HtmlWriter(out)) {
+                        render(w);
+                    }
+                    return out.toString("UTF-8");
+                } catch (IOException e) {
+                    throw new RuntimeException(e); // nothing to fail writing to memory
+                } finally {
+                    out.release();
+                }
+            }
+
+            public void render(OutputStream out) throws IOException {
+                try (HtmlWriter w = new HtmlWriter(out)) {
+                    renderTo(w);
+                }
+            }
+
+            // how parents and the server render an element, through marshal() when a subclass overrides it
+            final void renderTo(HtmlWriter w) throws IOException {
+                if (overridesMarshal(getClass())) {
+                    w.text(marshal());
+                } else {
+                    render(w);
+                }
+            }
+
+            private static final ConcurrentHashMap<Class<?>, Boolean> marshalOverrides = new ConcurrentHashMap<>();
+
+            private static boolean overridesMarshal(Class<?> c) {
+                Boolean overrides = marshalOverrides.get(c);
+                if (overrides == null) {
+                    overrides = false;
+                    for (Class<?> k = c; k != Element.class && !overrides; k = k.getSuperclass()) {
+                        try {
+                            k.getDeclaredMethod("marshal");
+                            overrides = true;
+                        } catch (NoSuchMethodException e) {
+                            // declared further up, if at all
+                        }
+                    }
+                    marshalOverrides.put(c, overrides);
                 }
-                builder.append(">");
-                return builder.toString();
+                return overrides;
+            }
+
+            protected void render(HtmlWriter w) throws IOException {
+                w.raw('<').text(tagName);
+                renderAttributes(w);
+                w.raw('>');
+            }
+
+            protected void renderAttributes(HtmlWriter w) throws IOException {
+                for (int i = 0; i < attributeCount; i++) {
+                    w.raw(' ').text(attributes[i * 2]);
+                    String value = attributes[i * 2 + 1];
+                    if (value != null) {
+                        w.raw('=').attributeValue(value);
+                    }
+                }
+                if (attributeSlots != null) {
+                    for (AttributeSlot slot : attributeSlots) {
+                        w.slot(slot);
+                    }
+                }
+            }
+
+            // an attribute whose value comes from the values of a Template render
+            public Element attrSlot(String name, String slot) {
+                if (attributeSlots == null) {
+                    attributeSlots = new ArrayList<>(1);
+                }
+                attributeSlots.add(new AttributeSlot(name, slot));
+                return this;
             }
 
             public Element attr(String name, String value) {
-                attributes.put(name, value);
+                for (int i = 0; i < attributeCount; i++) {
+                    if (attributes[i * 2].equals(name)) {
+                        attributes[i * 2 + 1] = value;
+                        return this;
+                    }
+                }
+                if (attributeCount * 2 == attributes.length) {
+                    attributes = Arrays.copyOf(attributes, Math.max(4, attributes.length * 2));
+                }
+                attributes[attributeCount * 2] = name;
+                attributes[attributeCount * 2 + 1] = value;
+                attributeCount++;
                 return this;
             }
 
+            public String attr(String name) {
+                for (int i = 0; i < attributeCount; i++) {
+                    if (attributes[i * 2].equals(name)) {
+                        return attributes[i * 2 + 1];
+                    }
+                }
+                return null;
+            }
+
             public Element className(String s) {
                 attr("class", s);
                 return this;
@@ -1338,6 +5495,7 @@ public class Gin {
             }
         }
 
+        // text content, & < and > are escaped when rendered
         public static class InnerText extends Element {
 
             public InnerText(String name) {
@@ -1345,58 +5503,80 @@ public class Gin {
             }
 
             @Override
-            protected String marshal() {
-                return tagName;
+            protected void render(HtmlWriter w) throws IOException {
+                if (tagName != null) {
+                    w.escaped(tagName);
+                }
+            }
+        }
+
+        // markup written as is, for trusted content and script bodies which aren't entity-decoded
+        public static class RawText extends InnerText {
+
+            public RawText(String html) {
+                super(html);
+            }
+
+            @Override
+            protected void render(HtmlWriter w) throws IOException {
+                if (tagName != null) {
+                    w.text(tagName);
+                }
             }
         }
 
+        // children are kept in an Element[] of exactly their number, copied so callers' arrays are never shared
         public static class Container extends Element {
-            protected List<Element> children = new ArrayList<>();
+            protected Element[] children = noChildren;
 
             public Container(String tagName) {
                 super(tagName);
             }
 
             @Override
-            protected String marshal() {
-                StringBuilder builder = new StringBuilder();
-                builder.append("<").append(tagName);
-                for (Map.Entry<String, String> entry : attributes.entrySet()) {
-                    builder.append(" ").append(entry.getKey()).append("=").append(entry.getValue());
-                }
-                builder.append(">");
+            protected void render(HtmlWriter w) throws IOException {
+                super.render(w);
                 for (Element element : children) {
                     if (element == null) {
                         continue;
                     }
-                    builder.append(element.marshal());
+                    element.renderTo(w);
                 }
-                builder.append("</").append(tagName).append(">");
-                return builder.toString();
+                w.raw('<').raw('/').text(tagName).raw('>');
+            }
+
+            // a read-only view, the List type subclasses used before children became an array
+            public List<Element> children() {
+                return Collections.unmodifiableList(Arrays.asList(children));
             }
 
             public Container body(Element... elements) {
-                children.addAll(Arrays.asList(elements));
+                int n = children.length;
+                children = Arrays.copyOf(children, n + elements.length);
+                System.arraycopy(elements, 0, children, n, elements.length);
                 return this;
             }
 
             public <T> Container bodyListOfIndex(List<T> list, ElementTypeIndexHandler<T> handler) {
+                int n = children.length;
+                children = Arrays.copyOf(children, n + list.size());
                 for (int i = 0; i < list.size(); i++) {
-                    children.add(handler.handle(list.get(i), i));
+                    children[n + i] = handler.handle(list.get(i), i);
                 }
                 return this;
             }
 
             public <T> Container bodyListOf(List<T> list, ElementTypeHandler<T> handler) {
+                int n = children.length;
+                children = Arrays.copyOf(children, n + list.size());
                 for (int i = 0; i < list.size(); i++) {
-                    children.add(handler.handle(list.get(i)));
+                    children[n + i] = handler.handle(list.get(i));
                 }
                 return this;
             }
 
             public Container setBody(Element... elements) {
-                children.clear();
-                children.addAll(Arrays.asList(elements));
+                children = Arrays.copyOf(elements, elements.length, Element[].class);
                 return this;
             }
         }
@@ -1416,10 +5596,12 @@ public class Gin {
                 attr("lang", "en");
             }
 
+            private static final byte[] doctype = "<!DOCTYPE html>".getBytes(StandardCharsets.US_ASCII);
+
             @Override
-            protected String marshal() {
-                String s = super.marshal();
-                return "<!DOCTYPE html>" + s;
+            protected void render(HtmlWriter w) throws IOException {
+                w.write(doctype);
+                super.render(w);
             }
         }
 
@@ -1523,6 +5705,28 @@ public class Gin {
             return new InnerText(s);
         }
 
+        // filled with values.get(name) when rendering a Template
+        public Slot slot(String name) {
+            return new ValueSlot(name);
+        }
+
+        public <T> Slot slotListOf(String name, ElementTypeHandler<T> handler) {
+            return new ListSlot<>(name, handler);
+        }
+
+        public Template compile(Element root) {
+            return Template.compile(root);
+        }
+
+        // ttl in milliseconds, the handler only runs when the fragment is missing or expired
+        public Fragment fragment(String key, long ttl, FragmentHandler handler) {
+            return new Fragment(fragments, key, ttl, handler);
+        }
+
+        public Fragment fragment(FragmentCache cache, String key, long ttl, FragmentHandler handler) {
+            return new Fragment(cache, key, ttl, handler);
+        }
+
         public Element meta() {
             return new Element("meta");
         }
@@ -1540,7 +5744,11 @@ public class Gin {
         }
 
         public Container script(String js) {
-            return new Container("script").body(new InnerText(js));
+            return new Container("script").body(new RawText(js));
+        }
+
+        public RawText raw(String html) {
+            return new RawText(html);
         }
 
         public Container scriptSrc(String src) {
@@ -0,0 +1,122 @@
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class BodyInputStreamTest extends Tests {
+
+    static Gin.ConnectionInput input(String s) {
+        return new Gin.ConnectionInput(new ByteArrayInputStream(ascii(s)));
+    }
+
+    static String readAll(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        byte[] b = new byte[3];
+        int n;
+        while ((n = in.read(b)) > 0) {
+            sb.append(new String(b, 0, n, "ISO-8859-1"));
+        }
+        return sb.toString();
+    }
+
+    static void testFixedLengthStopsAtContentLength() throws Exception {
+        Gin.ConnectionInput in = input("hello world");
+        Gin.BodyInputStream body = Gin.BodyInputStream.fixed(in, 5);
+        assertEquals("hello", readAll(body));
+        assertEquals(-1, body.read());
+        assertTrue(!body.hasContent(), "body should be done");
+        assertEquals(' ', in.read());
+    }
+
+    static void testEmptyFixedBody() throws Exception {
+        Gin.BodyInputStream body = Gin.BodyInputStream.fixed(input("GET"), 0);
+        assertTrue(!body.hasContent(), "empty body has no content");
+        assertEquals(-1, body.read());
+    }
+
+    static void testTruncatedFixedBody() {
+        Gin.BodyInputStream body = Gin.BodyInputStream.fixed(input("abc"), 10);
+        assertThrows(EOFException.class, () -> readAll(body));
+    }
+
+    static void testChunkedDecoding() throws Exception {
+        Gin.ConnectionInput in = input("4\r\nWiki\r\n5;ext=1\r\npedia\r\nE\r\n in\r\n\r\nchunks.\r\n0\r\nX-Trailer: t\r\n\r\nNEXT");
+        Gin.BodyInputStream body = Gin.BodyInputStream.chunked(in);
+        assertEquals("Wikipedia in\r\n\r\nchunks.", readAll(body));
+        assertTrue(!body.hasContent(), "chunked body should end at the last chunk");
+        assertEquals('N', in.read());
+    }
+
+    static void testChunkedSingleByteReads() throws Exception {
+        Gin.BodyInputStream body = Gin.BodyInputStream.chunked(input("a\r\n0123456789\r\n1\r\nx\r\n0\r\n\r\n"));
+        StringBuilder sb = new StringBuilder();
+        int v;
+        while ((v = body.read()) >= 0) {
+            sb.append((char) v);
+        }
+        assertEquals("0123456789x", sb.toString());
+    }
+
+    static void testInvalidChunks() {
+        assertThrows(IOException.class, () -> readAll(Gin.BodyInputStream.chunked(input("zz\r\nab\r\n0\r\n\r\n"))));
+        assertThrows(IOException.class, () -> readAll(Gin.BodyInputStream.chunked(input("2\r\nabXX1\r\nc\r\n0\r\n\r\n"))));
+        assertThrows(EOFException.class, () -> readAll(Gin.BodyInputStream.chunked(input("5\r\nab"))));
+    }
+
+    static void testDrainSkipsUnreadBody() throws Exception {
+        Gin.ConnectionInput in = input("3\r\nabc\r\n2\r\nde\r\n0\r\n\r\nGET");
+        Gin.BodyInputStream body = Gin.BodyInputStream.chunked(in);
+        assertEquals('a', body.read());
+        assertTrue(body.drain(100), "drain within the limit");
+        assertEquals('G', in.read());
+        assertTrue(!Gin.BodyInputStream.fixed(input("0123456789"), 10).drain(4), "drain beyond the limit");
+    }
+
+    static void testUnreadBodyIsDrainedOnKeepAlive() throws Exception {
+        Gin gin = server();
+        for (String id : new String[]{"1", "2", "3"}) {
+            gin.post("/u/" + id, c -> c.string(200, "u" + id));
+        }
+        int port = start(gin);
+        try {
+            String response = exchange(port, "POST /u/1 HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nhello"
+                + "POST /u/2 HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n"
+                + "POST /u/3 HTTP/1.1\r\nHost: x\r\nContent-Length: 0\r\n\r\n");
+            assertEquals(3, count(response, "HTTP/1.1 200"));
+            assertTrue(response.contains("u1") && response.contains("u2") && response.contains("u3"), response);
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // the server never asked for the body, so the pipelined request must not be taken for it
+    static void testUnsentContinueBodyClosesConnection() throws Exception {
+        Gin gin = server();
+        gin.post("/u/1", c -> c.string(200, "u1"));
+        gin.get("/u/2", c -> c.string(200, "u2"));
+        int port = start(gin);
+        try {
+            String response = exchange(port, "POST /u/1 HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\nExpect: 100-continue\r\n\r\n"
+                + "GET /u/2 HTTP/1.1\r\nHost: x\r\n\r\n");
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            assertTrue(response.contains("Connection: close"), response);
+            assertTrue(!response.contains("100 Continue"), response);
+            assertEquals(1, count(response, "HTTP/1.1 "));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testContinueIsSentWhenTheBodyIsRead() throws Exception {
+        Gin gin = server();
+        gin.post("/echo", c -> c.string(200, c.bodyAsText()));
+        int port = start(gin);
+        try {
+            String response = exchange(port, "POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\nExpect: 100-continue\r\n\r\nhello");
+            assertTrue(response.startsWith("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200"), response);
+            assertTrue(response.endsWith("hello"), response);
+        } finally {
+            gin.stop();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BufferPoolTest extends Tests {
+
+    static void testSizeClasses() {
+        Gin.BufferPool pool = Gin.BufferPool.heap;
+        assertEquals(4 << 10, pool.acquire(1).capacity());
+        assertEquals(4 << 10, pool.acquire(4 << 10).capacity());
+        assertEquals(16 << 10, pool.acquire((4 << 10) + 1).capacity());
+        assertEquals(1 << 20, pool.acquire(1 << 20).capacity());
+        // above the largest class the exact size is allocated
+        assertEquals((1 << 20) + 1, pool.acquire((1 << 20) + 1).capacity());
+    }
+
+    static void testReleasedBufferIsReusedCleared() {
+        ByteBuffer b = Gin.BufferPool.heap.acquire(100);
+        b.put((byte) 1).flip();
+        Gin.BufferPool.heap.release(b);
+        ByteBuffer again = Gin.BufferPool.heap.acquire(200);
+        assertTrue(again == b, "the thread's cached buffer is reused");
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        Gin.BufferPool.heap.release(again);
+    }
+
+    static void testForeignBuffersAreNotPooled() {
+        ByteBuffer odd = ByteBuffer.allocate(5000);
+        Gin.BufferPool.heap.release(odd);
+        ByteBuffer huge = ByteBuffer.allocate(2 << 20);
+        Gin.BufferPool.heap.release(huge);
+        ByteBuffer direct = ByteBuffer.allocateDirect(4 << 10);
+        Gin.BufferPool.heap.release(direct);
+        for (int i = 0; i < 8; i++) {
+            ByteBuffer b = Gin.BufferPool.heap.acquire(4 << 10);
+            assertTrue(b != odd && b != direct && !b.isDirect(), "foreign buffer handed out");
+        }
+        assertTrue(Gin.BufferPool.heap.acquire(2 << 20) != huge, "oversized buffer handed out");
+    }
+
+    // large classes skip the per-thread cache, a buffer released by one thread is available to all
+    static void testLargeClassesAreShared() throws Exception {
+        AtomicReference<ByteBuffer> released = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            ByteBuffer b = Gin.BufferPool.heap.acquire(200 << 10);
+            released.set(b);
+            Gin.BufferPool.heap.release(b);
+        });
+        t.start();
+        t.join();
+        ByteBuffer b = Gin.BufferPool.heap.acquire(200 << 10);
+        assertTrue(b == released.get(), "buffer released on another thread is reused");
+        Gin.BufferPool.heap.release(b);
+    }
+
+    static void testLeakTracking() {
+        boolean debug = Gin.BufferPool.debug;
+        Gin.BufferPool.debug = true;
+        try {
+            int before = Gin.BufferPool.heap.leaks().size();
+            ByteBuffer b = Gin.BufferPool.heap.acquire(10);
+            assertEquals(before + 1, Gin.BufferPool.heap.leaks().size());
+            Gin.BufferPool.heap.release(b);
+            assertEquals(before, Gin.BufferPool.heap.leaks().size());
+        } finally {
+            Gin.BufferPool.debug = debug;
+        }
+    }
+
+    static void testBufferOutputStreamGrowsAndReleases() throws Exception {
+        Gin.BufferOutputStream out = new Gin.BufferOutputStream();
+        byte[] chunk = new byte[3000];
+        for (int i = 0; i < 50; i++) {
+            chunk[0] = (byte) i;
+            out.write(chunk);
+        }
+        assertEquals(150_000, out.size());
+        assertEquals(49, out.array()[147_000]);
+        out.release();
+    }
+
+    // a file field's data is the exact bytes of the part and stays intact after the request
+    static void testMultipartDataIsAnExactCopy() throws Exception {
+        AtomicReference<byte[]> kept = new AtomicReference<>();
+        Gin gin = server();
+        gin.post("/upload", c -> {
+            Gin.Request.MultipartFormField f = c.request.parseMultipartForm().get(0);
+            if (kept.get() == null) {
+                kept.set(f.data);
+            }
+            c.string(200, String.valueOf(f.data.length));
+        });
+        int port = start(gin);
+        try {
+            String response = exchange(port, MultipartLimitsTest.upload("/upload", MultipartReaderTest.form("f", "a.bin", "A")));
+            assertTrue(response.endsWith("\r\n\r\n1"), response);
+            for (int i = 0; i < 4; i++) {
+                exchange(port, MultipartLimitsTest.upload("/upload", MultipartReaderTest.form("f", "b.bin", MultipartLimitsTest.repeat('B', 3000))));
+            }
+            assertEquals(1, kept.get().length);
+            assertEquals('A', kept.get()[0]);
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // kept-alive and pipelined connections give back every buffer, also when they wait on an event loop in between
+    static void testConnectionBuffersAreReturned() throws Exception {
+        boolean debug = Gin.BufferPool.debug;
+        Gin.BufferPool.debug = true;
+        try {
+            int before = Gin.BufferPool.heap.leaks().size();
+            for (boolean nio : new boolean[]{false, true}) {
+                Gin gin = server();
+                gin.setNio(nio);
+                gin.setPipelineDepth(4);
+                gin.get("/", c -> c.string(200, "ok"));
+                int port = start(gin);
+                try (Socket socket = KeepAliveTest.connect(port)) {
+                    for (int i = 0; i < 3; i++) {
+                        KeepAliveTest.send(socket, KeepAliveTest.get("/"));
+                        assertEquals("ok", body(KeepAliveTest.next(socket)));
+                    }
+                    KeepAliveTest.send(socket, KeepAliveTest.get("/") + KeepAliveTest.get("/") + KeepAliveTest.get("/", "Connection: close"));
+                    for (int i = 0; i < 3; i++) {
+                        assertEquals("ok", body(KeepAliveTest.next(socket)));
+                    }
+                } finally {
+                    gin.stop();
+                }
+            }
+            eventually(() -> assertEquals(before, Gin.BufferPool.heap.leaks().size()));
+        } finally {
+            Gin.BufferPool.debug = debug;
+        }
+    }
+
+    // when the client is gone before a pipelined batch is answered, the batch is released once every handler is done
+    static void testAbandonedPipelinedBatchIsReleased() throws Exception {
+        boolean debug = Gin.BufferPool.debug;
+        Gin.BufferPool.debug = true;
+        try {
+            int before = Gin.BufferPool.heap.leaks().size();
+            Gin gin = server();
+            gin.setPipelineDepth(4);
+            gin.get("/fast", c -> c.string(200, "fast"));
+            gin.get("/slow", c -> {
+                Thread.sleep(300);
+                c.string(200, "slow");
+            });
+            int port = start(gin);
+            try (Socket socket = KeepAliveTest.connect(port)) {
+                KeepAliveTest.send(socket, KeepAliveTest.get("/fast") + KeepAliveTest.get("/slow") + KeepAliveTest.get("/slow"));
+                socket.setSoLinger(true, 0);
+            }
+            try {
+                Thread.sleep(500);
+                eventually(() -> assertEquals(before, Gin.BufferPool.heap.leaks().size()));
+            } finally {
+                gin.stop();
+            }
+        } finally {
+            Gin.BufferPool.debug = debug;
+        }
+    }
+}
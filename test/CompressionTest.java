@@ -0,0 +1,193 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public class CompressionTest extends Tests {
+
+    static String inflate(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[4096];
+        int n;
+        while ((n = in.read(b)) > 0) {
+            out.write(b, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    static String gunzip(String body) throws IOException {
+        return inflate(new GZIPInputStream(new ByteArrayInputStream(ascii(body))));
+    }
+
+    // the chunk data of a chunked body
+    static String dechunk(String body) {
+        StringBuilder sb = new StringBuilder();
+        int p = 0;
+        while (true) {
+            int lineEnd = body.indexOf("\r\n", p);
+            int size = Integer.parseInt(body.substring(p, lineEnd).trim(), 16);
+            if (size == 0) {
+                return sb.toString();
+            }
+            sb.append(body, lineEnd + 2, lineEnd + 2 + size);
+            p = lineEnd + 2 + size + 2;
+        }
+    }
+
+    static String text(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < n; i++) {
+            sb.append("line ").append(i).append(" of compressible text\n");
+        }
+        return sb.substring(0, n);
+    }
+
+    static void testNegotiate() {
+        assertNull(Gin.Compression.negotiate(null));
+        assertEquals("gzip", Gin.Compression.negotiate("gzip, deflate, br"));
+        assertEquals("gzip", Gin.Compression.negotiate("x-gzip"));
+        assertEquals("deflate", Gin.Compression.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", Gin.Compression.negotiate("gzip;q=0, deflate;q=0.1"));
+        assertEquals("gzip", Gin.Compression.negotiate("*"));
+        assertNull(Gin.Compression.negotiate("*;q=0"));
+        assertNull(Gin.Compression.negotiate("gzip;q=0"));
+        assertNull(Gin.Compression.negotiate("br, identity"));
+        assertNull(Gin.Compression.negotiate("gzip;q=x"));
+    }
+
+    static void testCompressible() {
+        assertTrue(Gin.Compression.compressible("text/html; charset=utf-8"), "html");
+        assertTrue(Gin.Compression.compressible("application/json"), "json");
+        assertTrue(Gin.Compression.compressible("image/svg+xml"), "svg");
+        assertTrue(!Gin.Compression.compressible("image/png"), "png");
+        assertTrue(!Gin.Compression.compressible(null), "no type");
+    }
+
+    static void testEncoderRoundTrip() throws Exception {
+        Gin.Compression compression = new Gin.Compression();
+        byte[] input = text(100_000).getBytes(StandardCharsets.UTF_8);
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Gin.Compression.Encoder encoder = compression.encoder(encoding);
+            try {
+                // in pieces, with a flush in between like a streamed body
+                encoder.write(input, 0, 30_000, out);
+                encoder.flush(out);
+                encoder.write(input, 30_000, input.length - 30_000, out);
+                encoder.finish(out);
+            } finally {
+                encoder.release();
+            }
+            InputStream in = new ByteArrayInputStream(out.toByteArray());
+            String decoded = inflate(encoding.equals("gzip") ? new GZIPInputStream(in) : new InflaterInputStream(in));
+            assertEquals(text(100_000), decoded);
+            assertTrue(out.size() < input.length / 4, encoding + " compressed to " + out.size());
+        }
+    }
+
+    static Gin server(String text) throws Exception {
+        Gin gin = server();
+        gin.setCompression(new Gin.Compression());
+        gin.get("/text", c -> c.string(200, text));
+        gin.get("/small", c -> c.string(200, "tiny"));
+        gin.get("/png", c -> {
+            c.response.headers.put(Gin.Headers.contentType, "image/png");
+            c.response.bytes(200, ascii(text));
+        });
+        gin.get("/stream", c -> {
+            Writer w = c.response.writer(200, "text/plain");
+            for (int i = 0; i < 10; i++) {
+                w.write(text);
+            }
+        });
+        return gin;
+    }
+
+    static void testBufferedResponses() throws Exception {
+        String text = text(5000);
+        Gin gin = server(text);
+        int port = start(gin);
+        try {
+            String response = request(port, "GET", "/text", "Accept-Encoding: gzip, deflate");
+            assertEquals("gzip", FileServingTest.header(response, "Content-Encoding"));
+            assertEquals("Accept-Encoding", FileServingTest.header(response, "Vary"));
+            assertEquals(body(response).length(), Integer.parseInt(FileServingTest.header(response, "Content-Length")));
+            assertEquals(text, gunzip(body(response)));
+
+            response = request(port, "GET", "/text", "Accept-Encoding: deflate");
+            assertEquals("deflate", FileServingTest.header(response, "Content-Encoding"));
+            assertEquals(text, inflate(new InflaterInputStream(new ByteArrayInputStream(ascii(body(response))))));
+
+            response = request(port, "GET", "/text");
+            assertNull(FileServingTest.header(response, "Content-Encoding"));
+            assertEquals("Accept-Encoding", FileServingTest.header(response, "Vary"));
+            assertEquals(text, body(response));
+
+            // below the threshold, or not worth compressing by type
+            assertNull(FileServingTest.header(request(port, "GET", "/small", "Accept-Encoding: gzip"), "Content-Encoding"));
+            response = request(port, "GET", "/png", "Accept-Encoding: gzip");
+            assertNull(FileServingTest.header(response, "Content-Encoding"));
+            assertNull(FileServingTest.header(response, "Vary"));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testStreamedResponse() throws Exception {
+        String text = text(5000);
+        Gin gin = server(text);
+        int port = start(gin);
+        try {
+            String response = request(port, "GET", "/stream", "Accept-Encoding: gzip");
+            assertEquals("gzip", FileServingTest.header(response, "Content-Encoding"));
+            assertEquals("chunked", FileServingTest.header(response, "Transfer-Encoding"));
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                expected.append(text);
+            }
+            assertEquals(expected.toString(), gunzip(dechunk(body(response))));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // a .gz sibling at least as new as the file is sent as is, with the file cache a gzip copy is built
+    static void testFiles() throws Exception {
+        String text = text(20_000);
+        File f = FileServingTest.file(text);
+        f = new File(f.getPath().replace(".txt", ".css"));
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(ascii(text));
+        }
+        f.deleteOnExit();
+        File gz = new File(f.getPath() + ".gz");
+        gz.deleteOnExit();
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+            out.write(ascii(text));
+        }
+        gz.setLastModified(f.lastModified() + 1000);
+        for (boolean cached : new boolean[]{false, true}) {
+            Gin gin = FileServingTest.files(server(text), f);
+            if (cached) {
+                gin.setFileCache(new Gin.FileCache(1 << 20, 64 << 10, 1 << 20, 1000));
+            }
+            int port = start(gin);
+            try {
+                String response = request(port, "GET", "/file", "Accept-Encoding: gzip");
+                assertEquals("gzip", FileServingTest.header(response, "Content-Encoding"));
+                assertEquals(body(response).length(), Integer.parseInt(FileServingTest.header(response, "Content-Length")));
+                assertEquals(text, gunzip(body(response)));
+                assertEquals(text, body(request(port, "GET", "/file")));
+            } finally {
+                gin.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.Writer;
+
+public class ConditionalTest extends Tests {
+
+    static Gin.Request request(String method, String... headers) {
+        Gin.Request req = FileServingTest.get(headers);
+        req.method = method;
+        return req;
+    }
+
+    static void testNotModified() {
+        long t = Gin.TimeX.parseHttpDate("Wed, 21 Oct 2015 07:28:00 GMT");
+        assertTrue(request("GET", "If-None-Match", "\"a\"").notModified("\"a\"", 0), "same tag");
+        assertTrue(request("GET", "If-None-Match", "\"x\", W/\"a\"").notModified("\"a\"", 0), "weak comparison in a list");
+        assertTrue(request("GET", "If-None-Match", "\"a\"").notModified("W/\"a\"", 0), "weak tag of the response");
+        assertTrue(request("HEAD", "If-None-Match", "*").notModified("\"b\"", 0), "any tag");
+        assertTrue(!request("GET", "If-None-Match", "\"a\"").notModified("\"b\"", 0), "other tag");
+        assertTrue(!request("GET", "If-None-Match", "\"a\"").notModified(null, t), "no tag to compare");
+        assertTrue(!request("POST", "If-None-Match", "\"a\"").notModified("\"a\"", 0), "only GET and HEAD");
+
+        assertTrue(request("GET", "If-Modified-Since", "Wed, 21 Oct 2015 07:28:00 GMT").notModified(null, t + 999), "same second");
+        assertTrue(!request("GET", "If-Modified-Since", "Wed, 21 Oct 2015 07:28:00 GMT").notModified(null, t + 1000), "modified later");
+        assertTrue(!request("GET", "If-Modified-Since", "not a date").notModified(null, t), "invalid date");
+        // If-None-Match takes precedence
+        assertTrue(!request("GET", "If-None-Match", "\"a\"", "If-Modified-Since", "Wed, 21 Oct 2015 07:28:00 GMT").notModified("\"b\"", t),
+            "If-None-Match decides");
+    }
+
+    static void testHttpDates() {
+        long t = Gin.TimeX.parseHttpDate("Wed, 21 Oct 2015 07:28:00 GMT");
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", Gin.TimeX.formatHttpDate(t));
+        assertEquals(-1, Gin.TimeX.parseHttpDate("yesterday"));
+    }
+
+    static Gin server(boolean autoETag) throws Exception {
+        Gin gin = server();
+        gin.setAutoETag(autoETag);
+        gin.get("/", c -> c.string(200, "hello etag"));
+        gin.get("/tagged", c -> {
+            c.response.headers.put(Gin.Headers.etag, "\"v1\"");
+            c.string(200, "tagged");
+        });
+        gin.get("/dated", c -> {
+            c.response.headers.put(Gin.Headers.lastModified, "Wed, 21 Oct 2015 07:28:00 GMT");
+            c.string(200, "dated");
+        });
+        gin.get("/missing", c -> c.string(404, "missing"));
+        gin.get("/small", c -> {
+            Writer w = c.response.writer(200, "text/plain");
+            w.write("small stream");
+        });
+        gin.get("/large", c -> {
+            Writer w = c.response.writer(200, "text/plain");
+            for (int i = 0; i < 5000; i++) {
+                w.write("line " + i + "\n");
+            }
+        });
+        return gin;
+    }
+
+    static void testAutoETagForGetAndHead() throws Exception {
+        Gin gin = server(true);
+        int port = start(gin);
+        try {
+            String get = request(port, "GET", "/");
+            String etag = FileServingTest.header(get, "ETag");
+            assertTrue(etag != null && etag.startsWith("\""), get);
+            String head = request(port, "HEAD", "/");
+            assertEquals(etag, FileServingTest.header(head, "ETag"));
+            assertEquals(FileServingTest.header(get, "Content-Length"), FileServingTest.header(head, "Content-Length"));
+            assertEquals("", body(head));
+
+            assertEquals("HTTP/1.1 304 Not Modified", status(request(port, "GET", "/", "If-None-Match: " + etag)));
+            String notModified = request(port, "HEAD", "/", "If-None-Match: " + etag);
+            assertEquals("HTTP/1.1 304 Not Modified", status(notModified));
+            assertNull(FileServingTest.header(notModified, "Content-Length"));
+            assertEquals("HTTP/1.1 200 OK", status(request(port, "GET", "/", "If-None-Match: \"other\"")));
+
+            // small streamed bodies are buffered and tagged, large ones are sent chunked without a tag
+            String small = request(port, "GET", "/small");
+            assertTrue(FileServingTest.header(small, "ETag") != null, small);
+            assertEquals(FileServingTest.header(small, "ETag"), FileServingTest.header(request(port, "HEAD", "/small"), "ETag"));
+            assertNull(FileServingTest.header(request(port, "GET", "/large"), "ETag"));
+            assertNull(FileServingTest.header(request(port, "HEAD", "/large"), "ETag"));
+
+            assertNull(FileServingTest.header(request(port, "GET", "/missing"), "ETag"));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testHandlerValidators() throws Exception {
+        Gin gin = server(false);
+        int port = start(gin);
+        try {
+            assertNull(FileServingTest.header(request(port, "GET", "/"), "ETag"));
+            assertEquals("\"v1\"", FileServingTest.header(request(port, "GET", "/tagged"), "ETag"));
+            String response = request(port, "GET", "/tagged", "If-None-Match: \"v1\"");
+            assertEquals("HTTP/1.1 304 Not Modified", status(response));
+            assertEquals("\"v1\"", FileServingTest.header(response, "ETag"));
+            assertEquals("", body(response));
+            assertEquals("HTTP/1.1 304 Not Modified", status(request(port, "GET", "/dated", "If-Modified-Since: Wed, 21 Oct 2015 07:28:00 GMT")));
+            assertEquals("HTTP/1.1 200 OK", status(request(port, "GET", "/dated", "If-Modified-Since: Tue, 20 Oct 2015 07:28:00 GMT")));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testFileValidators() throws Exception {
+        Gin gin = FileServingTest.files(server(), FileServingTest.file("file content"));
+        int port = start(gin);
+        try {
+            String response = request(port, "GET", "/file");
+            String etag = FileServingTest.header(response, "ETag");
+            String lastModified = FileServingTest.header(response, "Last-Modified");
+            assertEquals(etag, FileServingTest.header(request(port, "HEAD", "/file"), "ETag"));
+            assertEquals("HTTP/1.1 304 Not Modified", status(request(port, "GET", "/file", "If-None-Match: " + etag)));
+            assertEquals("HTTP/1.1 304 Not Modified", status(request(port, "GET", "/file", "If-Modified-Since: " + lastModified)));
+        } finally {
+            gin.stop();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DSLTest extends Tests {
+    static final Gin.DSL d = new Gin.DSL();
+
+    static String render(Gin.DSL.Template template, Map<String, ?> values) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.render(out, values);
+        return out.toString("UTF-8");
+    }
+
+    static Map<String, Object> values(Object... kv) {
+        Map<String, Object> m = new HashMap<>();
+        for (int i = 0; i < kv.length; i += 2) {
+            m.put((String) kv[i], kv[i + 1]);
+        }
+        return m;
+    }
+
+    static Gin.DSL.Element page() {
+        return d.html(d.head(d.title("T")), d.body(
+            d.h1("hi"),
+            d.p(d.slot("name")),
+            d.a(d.text("link")).attrSlot("href", "url"),
+            d.ul(d.slotListOf("items", v -> d.li(d.text(String.valueOf(v)))))));
+    }
+
+    static void testTemplateFillsSlots() throws Exception {
+        Gin.DSL.Template template = d.compile(page());
+        String html = render(template, values("name", "Ann", "url", "/x", "items", Arrays.asList(1, 2, 3)));
+        assertTrue(html.startsWith("<!DOCTYPE html><html"), html);
+        assertTrue(html.endsWith("<title>T</title></head><body><h1>hi</h1><p>Ann</p><a href=\"/x\">link</a>"
+            + "<ul><li>1</li><li>2</li><li>3</li></ul></body></html>"), html);
+    }
+
+    // a slot without a value renders nothing, an attribute slot leaves the attribute out
+    static void testMissingValues() throws Exception {
+        String html = render(d.compile(page()), values());
+        assertTrue(html.contains("<p></p><a>link</a><ul></ul>"), html);
+    }
+
+    // the same tree rendered directly leaves the slots empty
+    static void testPlainTreeIgnoresSlots() {
+        String html = page().marshal();
+        assertTrue(html.contains("<p></p><a>link</a><ul></ul>"), html);
+    }
+
+    // static segments are rendered once at compile time, later changes to the tree don't show
+    static void testSegmentsAreFixedAtCompileTime() throws Exception {
+        Gin.DSL.Container div = d.div(d.text("before"), d.slot("v"));
+        Gin.DSL.Template template = d.compile(div);
+        div.body(d.text("added later"));
+        assertEquals("<div>before1</div>", render(template, values("v", 1)));
+    }
+
+    static void testElementValuesAreRendered() throws Exception {
+        Gin.DSL.Template template = d.compile(d.div(d.slot("content")));
+        assertEquals("<div><span>inner</span></div>", render(template, values("content", d.span(d.text("inner")))));
+    }
+
+    static void testSlotValuesAreEscaped() throws Exception {
+        Gin.DSL.Template template = d.compile(d.div(d.slot("v")).attrSlot("title", "t"));
+        assertEquals("<div title=\"&quot;&gt;&lt;script&gt;\">&lt;b&gt;x&amp;y&lt;/b&gt;</div>",
+            render(template, values("v", "<b>x&y</b>", "t", "\"><script>")));
+    }
+
+    static void testTemplateIsReusableAcrossThreads() throws Exception {
+        Gin.DSL.Template template = d.compile(page());
+        Thread[] threads = new Thread[8];
+        String[] results = new String[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            int k = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 100; j++) {
+                        results[k] = render(template, values("name", "n" + k, "items", Collections.singletonList(k)));
+                    }
+                } catch (Exception e) {
+                    results[k] = e.toString();
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertTrue(results[i].contains("<p>n" + i + "</p>") && results[i].contains("<li>" + i + "</li>"), results[i]);
+        }
+    }
+
+    static void testTemplateThroughServer() throws Exception {
+        Gin.DSL.Template template = d.compile(page());
+        Gin gin = server();
+        gin.get("/tpl", c -> c.html(200, template, values("name", c.request.query("n"))));
+        int port = start(gin);
+        try {
+            String response = request(port, "GET", "/tpl?n=%3Cb%3E");
+            assertTrue(FileServingTest.header(response, "Content-Type").startsWith("text/html"), response);
+            assertTrue(body(response).contains("<p>&lt;b&gt;</p>"), response);
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // an element of a subclass that renders itself through marshal()
+    static Gin.DSL.Element custom(String markup) {
+        return new Gin.DSL.Element("x") {
+            @Override
+            protected String marshal() {
+                return markup;
+            }
+        };
+    }
+
+    static void testOverriddenMarshalInTemplate() throws Exception {
+        Gin.DSL.Template template = d.compile(d.div(custom("<hr/>"), d.slot("v"),
+            d.slotListOf("items", v -> custom("<i>" + v + "</i>"))));
+        assertEquals("<div><hr/><b>x</b><i>1</i><i>2</i></div>",
+            render(template, values("v", custom("<b>x</b>"), "items", Arrays.asList(1, 2))));
+    }
+
+    // a body given as an array of a subtype takes other elements afterwards
+    static void testSubtypeArrayBody() {
+        Gin.DSL.Container[] items = {d.li(d.text("a")), d.li(d.text("b"))};
+        Gin.DSL.Container list = d.ul(items);
+        list.bodyListOf(Arrays.asList("c"), v -> d.text(v));
+        list.body(d.text("d"));
+        assertEquals("<ul><li>a</li><li>b</li>cd</ul>", list.marshal());
+        assertEquals("<p>x</p>", d.p().setBody(new Gin.DSL.Container[]{d.span(d.text("x"))}).setBody(d.text("x")).marshal());
+    }
+
+    static void testCallerArrayIsNotShared() {
+        Gin.DSL.Element[] elements = {d.text("a"), d.text("b")};
+        Gin.DSL.Container div = d.div(elements);
+        Gin.DSL.Container p = d.p().setBody(elements);
+        elements[0] = d.text("changed");
+        assertEquals("<div>ab</div>", div.marshal());
+        assertEquals("<p>ab</p>", p.marshal());
+        assertEquals(2, div.children().size());
+        assertThrows(UnsupportedOperationException.class, () -> div.children().add(d.text("c")));
+    }
+
+    static void testTextAndAttributesAreEscaped() {
+        assertEquals("<p>a &lt;b&gt; &amp; \"c\" 'd'</p>", d.p(d.text("a <b> & \"c\" 'd'")).marshal());
+        assertEquals("<div title=\"&quot;x&quot; &#39;y&#39; &lt;&amp;&gt;\"></div>", d.div().attr("title", "\"x\" 'y' <&>").marshal());
+        // a later attr replaces the value, a null value leaves a bare attribute
+        assertEquals("<div id=\"b\" hidden></div>", d.div().attr("id", "a").attr("hidden", null).attr("id", "b").marshal());
+    }
+
+    static void testRawTextIsNotEscaped() {
+        assertEquals("<div><b>bold</b> &amp;</div>", d.div(d.raw("<b>bold</b> &amp;")).marshal());
+        assertEquals("<script>if (a < b && c > d) {}</script>", d.script("if (a < b && c > d) {}").marshal());
+    }
+
+    // multibyte characters, surrogate pairs and escapes across the writer's buffer boundaries
+    static void testUtf8() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("\u00e9\u4e2d\ud83d\ude00<").append(i % 10);
+        }
+        String text = sb.toString();
+        Gin.DSL.Element element = d.p(d.text(text)).attr("title", text);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        element.render(out);
+        String escaped = text.replace("<", "&lt;");
+        String expected = "<p title=\"" + escaped + "\">" + escaped + "</p>";
+        assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(expected, element.marshal());
+        // an unpaired surrogate becomes '?' like String.getBytes
+        assertEquals("<p>a?b</p>", d.p(d.text("a\ud83db")).marshal());
+    }
+
+    static void testFragmentIsRenderedOncePerTtl() throws Exception {
+        Gin.DSL.FragmentCache cache = new Gin.DSL.FragmentCache(1 << 20);
+        AtomicInteger renders = new AtomicInteger();
+        Gin.DSL.Element page = d.div(d.fragment(cache, "f", 60_000, () -> d.span(d.text("n" + renders.incrementAndGet()))));
+        assertEquals("<div><span>n1</span></div>", page.marshal());
+        assertEquals("<div><span>n1</span></div>", page.marshal());
+        assertTrue(cache.size() > 0, "cached");
+        cache.invalidate("f");
+        assertEquals(0L, cache.size());
+        assertEquals("<div><span>n2</span></div>", page.marshal());
+
+        Gin.DSL.Element expiring = d.fragment(cache, "e", 50, () -> d.text("e" + renders.incrementAndGet()));
+        String first = expiring.marshal();
+        assertEquals(first, expiring.marshal());
+        Thread.sleep(100);
+        assertTrue(!first.equals(expiring.marshal()), "rendered again after the ttl");
+    }
+
+    static void testFragmentCacheEvictsLeastRecentlyUsed() {
+        Gin.DSL.FragmentCache cache = new Gin.DSL.FragmentCache(3000);
+        String big = repeat('x', 1000);
+        AtomicInteger renders = new AtomicInteger();
+        Gin.DSL.Element a = d.fragment(cache, "a", 60_000, () -> d.text(big + renders.incrementAndGet()));
+        Gin.DSL.Element b = d.fragment(cache, "b", 60_000, () -> d.text(big + renders.incrementAndGet()));
+        Gin.DSL.Element c = d.fragment(cache, "c", 60_000, () -> d.text(big + renders.incrementAndGet()));
+        a.marshal();
+        b.marshal();
+        a.marshal();
+        c.marshal();
+        assertTrue(cache.size() <= 3000, "within maxBytes: " + cache.size());
+        assertEquals(3, renders.get());
+        a.marshal();
+        assertEquals(3, renders.get());
+        b.marshal();
+        assertEquals(4, renders.get());
+    }
+
+    static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    // concurrent misses wait for the one render, and a failing render reaches every one of them
+    static void testConcurrentMissesRenderOnce() throws Exception {
+        Gin.DSL.FragmentCache cache = new Gin.DSL.FragmentCache(1 << 20);
+        AtomicInteger renders = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch(1);
+        Gin.DSL.Element slow = d.fragment(cache, "slow", 60_000, () -> {
+            renders.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return d.text("slow");
+        });
+        Gin.DSL.Element failing = d.fragment(cache, "failing", 60_000, () -> {
+            throw new IllegalStateException("no data");
+        });
+        Thread[] threads = new Thread[8];
+        String[] results = new String[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            int k = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    go.await();
+                    results[k] = slow.marshal();
+                    failing.marshal();
+                } catch (Exception e) {
+                    results[k] += " " + e;
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, renders.get());
+        for (String result : results) {
+            assertEquals("slow java.lang.IllegalStateException: no data", result);
+        }
+    }
+
+    // a fragment in a Template is a slot, filled from the cache on each render
+    static void testFragmentInTemplateStaysDynamic() throws Exception {
+        Gin.DSL.FragmentCache cache = new Gin.DSL.FragmentCache(1 << 20);
+        AtomicInteger renders = new AtomicInteger();
+        Gin.DSL.Template template = d.compile(d.div(
+            d.fragment(cache, "nav", 60_000, () -> d.span(d.text("nav" + renders.incrementAndGet()), d.slot("user"))),
+            d.p(d.slot("user"))));
+        assertEquals(0, renders.get());
+        assertEquals("<div><span>nav1a</span><p>a</p></div>", render(template, values("user", "a")));
+        assertEquals("<div><span>nav1a</span><p>b</p></div>", render(template, values("user", "b")));
+        cache.invalidate("nav");
+        assertEquals("<div><span>nav2c</span><p>c</p></div>", render(template, values("user", "c")));
+    }
+
+    static void testFragmentOfOverriddenMarshal() {
+        Gin.DSL.FragmentCache cache = new Gin.DSL.FragmentCache(1 << 20);
+        assertEquals("<div><hr/></div>", d.div(d.fragment(cache, "custom", 60_000, () -> custom("<hr/>"))).marshal());
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+public class EventLoopTest extends Tests {
+
+    static Gin server(boolean nio) throws IOException {
+        Gin gin = server();
+        gin.setNio(nio);
+        gin.setEventLoops(2);
+        gin.get("/", c -> c.string(200, "ok"));
+        return gin;
+    }
+
+    // the response to a request that closes the connection, read until the server does
+    static String fetch(int port, String request) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(3000);
+            OutputStream out = socket.getOutputStream();
+            out.write(ascii(request));
+            out.flush();
+            return readToEnd(socket.getInputStream());
+        }
+    }
+
+    static String readToEnd(InputStream in) throws IOException {
+        StringBuilder response = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            response.append((char) c);
+        }
+        return response.toString();
+    }
+
+    static String get(String... headers) {
+        StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\nHost: x\r\nConnection: close\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        return sb.append("\r\n").toString();
+    }
+
+    static String pad(int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    // the head buffer grows from 4K up to the 64K limit, a longer head closes the connection without a response
+    static void testLargeHeads() throws Exception {
+        Gin gin = server(true);
+        int port = start(gin);
+        try {
+            for (int size : new int[]{100, 5000, 20_000, 60_000}) {
+                String response = fetch(port, get("X-Pad: " + pad(size)));
+                assertEquals("HTTP/1.1 200 OK", status(response));
+                assertEquals("ok", body(response));
+            }
+            String response;
+            try {
+                response = fetch(port, get("X-Pad: " + pad(70_000)));
+            } catch (IOException e) {
+                response = ""; // reset while the rest of the head was still being sent
+            }
+            assertEquals("", response);
+            assertEquals("ok", body(fetch(port, get())));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // the end of the head is found when it arrives split over several reads
+    static void testHeadInPieces() throws Exception {
+        Gin gin = server(true);
+        int port = start(gin);
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(3000);
+            OutputStream out = socket.getOutputStream();
+            for (String piece : new String[]{"GET / HTTP/1.1\r\nHost: x\r\nConnection: close\r", "\n", "\r", "\n"}) {
+                out.write(ascii(piece));
+                out.flush();
+                Thread.sleep(50);
+            }
+            assertEquals("ok", body(readToEnd(socket.getInputStream())));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // between requests the connection goes back to a loop with the buffer its head was read into, grown or not
+    static void testKeptAliveConnectionReturnsToTheLoop() throws Exception {
+        Gin gin = server(true);
+        int port = start(gin);
+        try (Socket socket = KeepAliveTest.connect(port)) {
+            for (int size : new int[]{100, 20_000, 100, 60_000, 100}) {
+                KeepAliveTest.send(socket, KeepAliveTest.get("/", "X-Pad: " + pad(size)));
+                assertEquals("ok", body(KeepAliveTest.next(socket)));
+            }
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testManyConnections() throws Exception {
+        Gin gin = server(true);
+        int port = start(gin);
+        try {
+            Thread[] threads = new Thread[16];
+            String[] responses = new String[threads.length];
+            for (int i = 0; i < threads.length; i++) {
+                int k = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        responses[k] = fetch(port, get());
+                    } catch (IOException e) {
+                        responses[k] = e.toString();
+                    }
+                });
+                threads[i].start();
+            }
+            for (int i = 0; i < threads.length; i++) {
+                threads[i].join();
+                assertEquals("ok", body(responses[i]));
+            }
+        } finally {
+            gin.stop();
+        }
+    }
+}
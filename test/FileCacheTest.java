@@ -0,0 +1,106 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class FileCacheTest extends Tests {
+
+    static String body(Gin.FileCache.Entry entry) {
+        String data = new String(entry.data, StandardCharsets.ISO_8859_1);
+        return data.substring(data.indexOf("\r\n\r\n") + 4);
+    }
+
+    static void testSmallFilesAreCopiedLargeOnesMapped() throws Exception {
+        Gin.FileCache cache = new Gin.FileCache(1 << 20, 1000, 100_000, 1000);
+        File small = FileServingTest.file(FileServingTest.content(500));
+        File large = FileServingTest.file(FileServingTest.content(50_000));
+        Gin.FileCache.Entry entry = cache.get(small.getPath());
+        assertNull(entry.mapped);
+        assertEquals(FileServingTest.content(500), body(entry));
+        assertTrue(new String(entry.data, StandardCharsets.ISO_8859_1).contains("Content-Length: 500\r\n"), "head fields");
+        assertTrue(cache.get(small.getPath()) == entry, "second get is a hit");
+
+        entry = cache.get(large.getPath());
+        assertEquals(50_000, entry.mapped.capacity());
+        assertEquals('a', entry.mapped.get(0));
+        assertNull(cache.get(FileServingTest.file(FileServingTest.content(100_001)).getPath()));
+        assertNull(cache.get(small.getPath() + ".missing"));
+    }
+
+    static void testEvictsLeastRecentlyUsed() throws Exception {
+        Gin.FileCache cache = new Gin.FileCache(5000, 4000, 4000, 1000);
+        File a = FileServingTest.file(FileServingTest.content(2000));
+        File b = FileServingTest.file(FileServingTest.content(2000));
+        File c = FileServingTest.file(FileServingTest.content(2000));
+        Gin.FileCache.Entry ea = cache.get(a.getPath());
+        Gin.FileCache.Entry eb = cache.get(b.getPath());
+        assertTrue(cache.get(a.getPath()) == ea, "a is cached");
+        cache.get(c.getPath());
+        assertTrue(cache.size() <= 5000, "within maxBytes: " + cache.size());
+        assertTrue(cache.get(a.getPath()) == ea, "recently used a survives");
+        assertTrue(cache.get(b.getPath()) != eb, "b was evicted and loaded again");
+    }
+
+    static void testChangedFilesAreReloaded() throws Exception {
+        Gin.FileCache cache = new Gin.FileCache(1 << 20, 1000, 100_000, 0);
+        File f = FileServingTest.file("first");
+        Gin.FileCache.Entry first = cache.get(f.getPath());
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(ascii("second version"));
+        }
+        f.setLastModified(first.lastModified + 2000);
+        assertEquals("second version", body(cache.get(f.getPath())));
+        cache.invalidate(f.getPath());
+        assertEquals(0, cache.size());
+    }
+
+    // every concurrent miss gets the one entry loaded for all of them
+    static void testConcurrentMissesLoadOnce() throws Exception {
+        // read into memory rather than mapped, so a load takes long enough for the threads to overlap
+        Gin.FileCache cache = new Gin.FileCache(64 << 20, 8 << 20, 8 << 20, 1000);
+        String path = FileServingTest.file(FileServingTest.content(4 << 20)).getPath();
+        int n = 16;
+        AtomicReferenceArray<Gin.FileCache.Entry> entries = new AtomicReferenceArray<>(n);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            int k = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    go.await();
+                    entries.set(k, cache.get(path));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (int i = 1; i < n; i++) {
+            assertTrue(entries.get(i) != null && entries.get(i) == entries.get(0), "thread " + i + " got another entry");
+        }
+    }
+
+    static void testServedFromCache() throws Exception {
+        String text = FileServingTest.content(3000);
+        File f = FileServingTest.file(text);
+        Gin gin = FileServingTest.files(server(), f);
+        gin.setFileCache(new Gin.FileCache(1 << 20, 1000, 100_000, 1000));
+        int port = start(gin);
+        try {
+            for (int i = 0; i < 2; i++) {
+                String response = request(port, "GET", "/file");
+                assertEquals("HTTP/1.1 200 OK", status(response));
+                assertEquals(text, Tests.body(response));
+                String etag = FileServingTest.header(response, "ETag");
+                assertEquals("HTTP/1.1 304 Not Modified", status(request(port, "GET", "/file", "If-None-Match: " + etag)));
+            }
+        } finally {
+            gin.stop();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class FileServingTest extends Tests {
+
+    static Gin.Request get(String... headers) {
+        Gin.Request req = new Gin.Request();
+        req.method = Gin.Methods.get;
+        req.requestURI = "/";
+        for (int i = 0; i < headers.length; i += 2) {
+            req.headers.add(headers[i], headers[i + 1]);
+        }
+        return req;
+    }
+
+    static String content(int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    static File file(String content) throws IOException {
+        File f = Files.createTempFile("gin", ".txt").toFile();
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(ascii(content));
+        }
+        return f;
+    }
+
+    static String header(String response, String name) {
+        String head = response.substring(0, Math.max(0, response.indexOf("\r\n\r\n")));
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    static Gin files(Gin gin, File file) {
+        gin.get("/file", c -> c.serveFile(file.getPath()));
+        return gin;
+    }
+
+    static void testRangeParsing() {
+        assertNull(get().ranges(100));
+        assertEquals(new long[]{0, 10}, get(Gin.Headers.range, "bytes=0-9").ranges(100));
+        assertEquals(new long[]{90, 100}, get(Gin.Headers.range, "bytes=90-").ranges(100));
+        assertEquals(new long[]{70, 100}, get(Gin.Headers.range, "bytes=-30").ranges(100));
+        assertEquals(new long[]{0, 100}, get(Gin.Headers.range, "bytes=-300").ranges(100));
+        // clipped to the length, unsatisfiable specs dropped
+        assertEquals(new long[]{95, 100}, get(Gin.Headers.range, "bytes=95-200, 150-160").ranges(100));
+        assertEquals(new long[]{0, 1, 5, 6}, get(Gin.Headers.range, "bytes=0-0, 5-5").ranges(100));
+        assertEquals(new long[0], get(Gin.Headers.range, "bytes=100-").ranges(100));
+        assertEquals(new long[0], get(Gin.Headers.range, "bytes=-0").ranges(100));
+        // malformed or unsupported ranges are ignored
+        assertNull(get(Gin.Headers.range, "bytes=9-0").ranges(100));
+        assertNull(get(Gin.Headers.range, "bytes=a-b").ranges(100));
+        assertNull(get(Gin.Headers.range, "lines=0-9").ranges(100));
+        assertNull(get(Gin.Headers.range, "bytes=5").ranges(100));
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < 20; i++) {
+            many.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        assertNull(get(Gin.Headers.range, many.toString()).ranges(100));
+        Gin.Request post = get(Gin.Headers.range, "bytes=0-9");
+        post.method = Gin.Methods.post;
+        assertNull(post.ranges(100));
+    }
+
+    static void testWholeFile() throws Exception {
+        String text = content(5000);
+        Gin gin = files(server(), file(text));
+        int port = start(gin);
+        try {
+            String response = request(port, "GET", "/file");
+            assertEquals("HTTP/1.1 200 OK", status(response));
+            assertEquals("bytes", header(response, "Accept-Ranges"));
+            assertEquals("5000", header(response, "Content-Length"));
+            assertEquals(text, body(response));
+            assertEquals("HTTP/1.1 404 Not Found", status(request(port, "GET", "/missing")));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testSingleRange() throws Exception {
+        String text = content(5000);
+        Gin gin = files(server(), file(text));
+        int port = start(gin);
+        try {
+            String response = request(port, "GET", "/file", "Range: bytes=100-199");
+            assertEquals("HTTP/1.1 206 Partial Content", status(response));
+            assertEquals("bytes 100-199/5000", header(response, "Content-Range"));
+            assertEquals("100", header(response, "Content-Length"));
+            assertEquals(text.substring(100, 200), body(response));
+
+            response = request(port, "GET", "/file", "Range: bytes=-10");
+            assertEquals(text.substring(4990), body(response));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testMultipleRanges() throws Exception {
+        String text = content(5000);
+        Gin gin = files(server(), file(text));
+        int port = start(gin);
+        try {
+            String response = request(port, "GET", "/file", "Range: bytes=0-4, 10-14");
+            assertEquals("HTTP/1.1 206 Partial Content", status(response));
+            String type = header(response, "Content-Type");
+            assertTrue(type.startsWith("multipart/byteranges; boundary="), type);
+            String boundary = type.substring(type.indexOf('=') + 1);
+            String body = body(response);
+            assertEquals(Integer.parseInt(header(response, "Content-Length")), body.length());
+            assertEquals("\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-4/5000\r\n\r\n" + text.substring(0, 5)
+                + "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 10-14/5000\r\n\r\n" + text.substring(10, 15)
+                + "\r\n--" + boundary + "--\r\n", body);
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testUnsatisfiableRange() throws Exception {
+        Gin gin = files(server(), file(content(100)));
+        int port = start(gin);
+        try {
+            String response = request(port, "GET", "/file", "Range: bytes=500-600");
+            assertEquals("HTTP/1.1 416 Range Not Satisfiable", status(response));
+            assertEquals("bytes */100", header(response, "Content-Range"));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // a range for another version of the file gets the whole current one
+    static void testIfRange() throws Exception {
+        String text = content(300);
+        Gin gin = files(server(), file(text));
+        int port = start(gin);
+        try {
+            String etag = header(request(port, "GET", "/file"), "ETag");
+            String response = request(port, "GET", "/file", "Range: bytes=0-9", "If-Range: " + etag);
+            assertEquals("HTTP/1.1 206 Partial Content", status(response));
+            response = request(port, "GET", "/file", "Range: bytes=0-9", "If-Range: \"other\"");
+            assertEquals("HTTP/1.1 200 OK", status(response));
+            assertEquals(text, body(response));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // larger than a socket buffer, sent with transferTo on both server modes
+    static void testLargeFileBothModes() throws Exception {
+        String text = content(3 << 20);
+        File f = file(text);
+        for (boolean nio : new boolean[]{false, true}) {
+            Gin gin = server();
+            gin.setNio(nio);
+            files(gin, f);
+            int port = start(gin);
+            try {
+                String response = request(port, "GET", "/file");
+                assertEquals(text.length(), body(response).length());
+                assertTrue(text.equals(body(response)), "content differs");
+            } finally {
+                gin.stop();
+            }
+        }
+    }
+}
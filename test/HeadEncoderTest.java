@@ -0,0 +1,44 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class HeadEncoderTest extends Tests {
+
+    static String string(byte[] b) {
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+
+    static void testStatusLines() {
+        assertEquals("HTTP/1.1 200 OK\r\n", string(Gin.HeadEncoder.statusLine(Gin.Protocol.HTTP_1_1, 200)));
+        assertEquals("HTTP/1.1 404 Not Found\r\n", string(Gin.HeadEncoder.statusLine(Gin.Protocol.HTTP_1_1, 404)));
+        assertTrue(Gin.HeadEncoder.statusLine(Gin.Protocol.HTTP_1_1, 200) == Gin.HeadEncoder.statusLine(Gin.Protocol.HTTP_1_1, 200),
+            "HTTP/1.1 status lines are shared");
+        assertEquals("HTTP/1.0 200 OK\r\n", string(Gin.HeadEncoder.statusLine("HTTP/1.0", 200)));
+        assertTrue(string(Gin.HeadEncoder.statusLine(Gin.Protocol.HTTP_1_1, 799)).startsWith("HTTP/1.1 799 "), "codes outside the table");
+    }
+
+    static void testEncode() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put(Gin.Headers.contentType, "text/plain");
+        headers.put("X-Name", "välue");
+        ByteBuffer b = Gin.HeadEncoder.encode(Gin.Protocol.HTTP_1_1, 200, headers);
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        Gin.BufferPool.heap.release(b);
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nX-Name: välue\r\n\r\n", new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    // heads larger than the first buffer grow into a bigger one
+    static void testLargeHead() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 0; i < 200; i++) {
+            headers.put("X-Header-" + i, "value " + i);
+        }
+        ByteBuffer b = Gin.HeadEncoder.encode(Gin.Protocol.HTTP_1_1, 204, headers);
+        String head = new String(b.array(), 0, b.limit(), StandardCharsets.ISO_8859_1);
+        Gin.BufferPool.heap.release(b);
+        assertTrue(head.startsWith("HTTP/1.1 204 "), head);
+        assertTrue(head.endsWith("X-Header-199: value 199\r\n\r\n"), head);
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class HeadOptionsTest extends Tests {
+
+    static void testHeadRunsTheGetHandlerWithoutBody() throws Exception {
+        Gin gin = server();
+        gin.get("/text", c -> c.string(200, "some text"));
+        int port = start(gin);
+        try {
+            String get = request(port, "GET", "/text");
+            String head = request(port, "HEAD", "/text");
+            assertEquals(status(get), status(head));
+            assertEquals("9", FileServingTest.header(head, "Content-Length"));
+            assertEquals(FileServingTest.header(get, "Content-Type"), FileServingTest.header(head, "Content-Type"));
+            assertEquals("", body(head));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // HEAD is answered with the identity representation even when GET would be compressed
+    static void testHeadOfCompressibleFileIsIdentity() throws Exception {
+        String text = CompressionTest.text(20_000);
+        File f = new File(FileServingTest.file(text).getPath().replace(".txt", ".css"));
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(ascii(text));
+        }
+        File gz = new File(f.getPath() + ".gz");
+        gz.deleteOnExit();
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+            out.write(ascii(text));
+        }
+        gz.setLastModified(f.lastModified() + 1000);
+        for (boolean cached : new boolean[]{false, true}) {
+            Gin gin = FileServingTest.files(server(), f);
+            gin.setCompression(new Gin.Compression());
+            if (cached) {
+                gin.setFileCache(new Gin.FileCache(1 << 20, 64 << 10, 1 << 20, 1000));
+            }
+            gin.get("/text", c -> c.string(200, text));
+            int port = start(gin);
+            try {
+                for (String path : new String[]{"/file", "/text"}) {
+                    String head = request(port, "HEAD", path, "Accept-Encoding: gzip");
+                    assertEquals("HTTP/1.1 200 OK", status(head));
+                    assertNull(FileServingTest.header(head, "Content-Encoding"));
+                    assertEquals(String.valueOf(text.length()), FileServingTest.header(head, "Content-Length"));
+                    assertEquals("", body(head));
+                    String identity = request(port, "GET", path);
+                    assertEquals(FileServingTest.header(identity, "ETag"), FileServingTest.header(head, "ETag"));
+                }
+            } finally {
+                gin.stop();
+            }
+        }
+    }
+
+    static void testOptions() throws Exception {
+        Gin gin = server();
+        gin.get("/a", c -> c.string(200, "a"));
+        gin.post("/a", c -> c.string(200, "a"));
+        int port = start(gin);
+        try {
+            String response = request(port, "OPTIONS", "/a");
+            assertEquals("HTTP/1.1 204 No Content", status(response));
+            assertEquals("GET, POST, HEAD, OPTIONS", FileServingTest.header(response, "Allow"));
+            response = request(port, "OPTIONS", "*");
+            assertEquals("HTTP/1.1 204 No Content", status(response));
+            assertEquals(Gin.Router.allMethods, FileServingTest.header(response, "Allow"));
+            assertEquals("HTTP/1.1 404 Not Found", status(request(port, "OPTIONS", "/none")));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testDiscardingStreamTakesNoBuffers() throws Exception {
+        boolean debug = Gin.BufferPool.debug;
+        Gin.BufferPool.debug = true;
+        try {
+            int before = Gin.BufferPool.heap.leaks().size();
+            Gin.DiscardingOutputStream out = new Gin.DiscardingOutputStream(true);
+            out.write(ascii("discarded"));
+            assertEquals(0, out.array().length);
+            assertEquals(0, out.contents().remaining());
+            assertEquals(9, out.count);
+            out.release();
+            assertEquals(before, Gin.BufferPool.heap.leaks().size());
+        } finally {
+            Gin.BufferPool.debug = debug;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class HtmlWriterTest extends Tests {
+    static final Gin.DSL d = new Gin.DSL();
+
+    static String render(Gin.DSL.Element element) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        element.render(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // rendering to a stream gives the same markup as marshal, also when it flushes the writer's buffer many times
+    static void testRenderMatchesMarshal() throws Exception {
+        Gin.DSL.Container list = d.ul();
+        for (int i = 0; i < 2000; i++) {
+            list.body(d.li(d.text("item " + i)).attr("class", "c" + i % 7));
+        }
+        Gin.DSL.Element page = d.html(d.body(d.div(list)));
+        String html = page.marshal();
+        assertTrue(html.startsWith("<!DOCTYPE html><html"), html.substring(0, 40));
+        assertTrue(html.contains("<li class=\"c4\">item 1999</li></ul></div></body></html>"), "last item");
+        assertEquals(html, render(page));
+    }
+
+    // subclasses that render themselves by overriding marshal() keep their output inside a tree
+    static void testOverriddenMarshalIsUsed() throws Exception {
+        Gin.DSL.Container custom = new Gin.DSL.Container("x-custom") {
+            @Override
+            protected String marshal() {
+                return "<x-custom>é</x-custom>";
+            }
+        };
+        Gin.DSL.Container wrapped = new Gin.DSL.Container("span") {
+            @Override
+            protected String marshal() {
+                return "<!-- wrapped -->" + super.marshal();
+            }
+        };
+        wrapped.body(d.text("w"));
+        Gin.DSL.Element page = d.div(custom, d.p(wrapped));
+        String expected = "<div><x-custom>é</x-custom><p><!-- wrapped --><span>w</span></p></div>";
+        assertEquals(expected, page.marshal());
+        assertEquals(expected, render(page));
+        assertEquals("<x-custom>é</x-custom>", render(custom));
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeepAliveTest extends Tests {
+
+    static Socket connect(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout(3000);
+        return socket;
+    }
+
+    static void send(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(ascii(request));
+        out.flush();
+    }
+
+    static String get(String path, String... headers) {
+        StringBuilder sb = new StringBuilder("GET ").append(path).append(" HTTP/1.1\r\nHost: x\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        return sb.append("\r\n").toString();
+    }
+
+    // the next response on a kept-alive connection, "" if the server closed it
+    static String next(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        StringBuilder sb = new StringBuilder();
+        while (sb.indexOf("\r\n\r\n") < 0) {
+            int c = in.read();
+            if (c < 0) {
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        String head = sb.toString().toLowerCase();
+        int i = head.indexOf("\r\ncontent-length: ");
+        int length = i < 0 ? 0 : Integer.parseInt(head.substring(i + 18, head.indexOf("\r\n", i + 2)).trim());
+        for (int k = 0; k < length; k++) {
+            sb.append((char) in.read());
+        }
+        return sb.toString();
+    }
+
+    // whether the server closes the connection within a few seconds
+    static boolean closed(Socket socket) throws IOException {
+        try {
+            return socket.getInputStream().read() < 0;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true; // reset
+        }
+    }
+
+    static Gin server(boolean nio) throws IOException {
+        Gin gin = server();
+        gin.setNio(nio);
+        gin.setEventLoops(1);
+        AtomicInteger n = new AtomicInteger();
+        gin.get("/", c -> c.string(200, "n" + n.incrementAndGet()));
+        return gin;
+    }
+
+    static void testRequestsShareTheConnection() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            Gin gin = server(nio);
+            int port = start(gin);
+            try (Socket socket = connect(port)) {
+                for (int i = 1; i <= 3; i++) {
+                    send(socket, get("/"));
+                    String response = next(socket);
+                    assertEquals("n" + i, body(response));
+                    assertTrue(!response.contains("Connection: close"), response);
+                }
+            } finally {
+                gin.stop();
+            }
+        }
+    }
+
+    static void testMaxRequestsPerConnection() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            Gin gin = server(nio);
+            gin.setMaxRequestsPerConnection(2);
+            int port = start(gin);
+            try (Socket socket = connect(port)) {
+                send(socket, get("/"));
+                assertTrue(!next(socket).contains("Connection: close"), "first request");
+                send(socket, get("/"));
+                String response = next(socket);
+                assertEquals("n2", body(response));
+                assertTrue(response.contains("Connection: close"), response);
+                assertTrue(closed(socket), "closed after the last request");
+            } finally {
+                gin.stop();
+            }
+        }
+    }
+
+    static void testConnectionClose() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            Gin gin = server(nio);
+            int port = start(gin);
+            try (Socket socket = connect(port)) {
+                send(socket, get("/", "Connection: close"));
+                String response = next(socket);
+                assertEquals("n1", body(response));
+                assertTrue(response.contains("Connection: close"), response);
+                assertTrue(closed(socket), "closed after the response");
+            } finally {
+                gin.stop();
+            }
+            gin = server(nio);
+            gin.setKeepAlive(false);
+            port = start(gin);
+            try (Socket socket = connect(port)) {
+                send(socket, get("/"));
+                assertTrue(next(socket).contains("Connection: close"), "keep-alive off");
+                assertTrue(closed(socket), "closed with keep-alive off");
+            } finally {
+                gin.stop();
+            }
+        }
+    }
+
+    // idle connections and heads that stop halfway are closed after the idle timeout
+    static void testIdleTimeout() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            Gin gin = server(nio);
+            gin.setIdleTimeout(300);
+            int port = start(gin);
+            try (Socket idle = connect(port); Socket half = connect(port)) {
+                send(idle, get("/"));
+                assertEquals("n1", body(next(idle)));
+                send(half, "GET / HTTP/1.1\r\nHo");
+                long start = System.currentTimeMillis();
+                assertTrue(closed(idle), "idle connection closed");
+                assertTrue(closed(half), "half-sent head closed");
+                assertTrue(System.currentTimeMillis() - start < 2900, "closed in time");
+            } finally {
+                gin.stop();
+            }
+        }
+    }
+
+    // a worker that finished its task takes a moment to wait for the next one, until then the pool is full
+    static void idle(ExecutorService executor) throws Exception {
+        eventually(() -> assertEquals(0, ((ThreadPoolExecutor) executor).getActiveCount()));
+        Thread.sleep(50);
+    }
+
+    // a connection that was answered once and now waits for its next request
+    static Socket parked(int port, ExecutorService executor) throws Exception {
+        idle(executor);
+        Socket socket = connect(port);
+        send(socket, get("/"));
+        assertEquals("HTTP/1.1 200 OK", status(next(socket)));
+        return socket;
+    }
+
+    // a kept-alive connection waits for its next request on an event loop, not on one of the workers
+    static void testIdleConnectionsHoldNoWorker() throws Exception {
+        for (boolean nio : new boolean[]{false, true}) {
+            Gin gin = server(nio);
+            ExecutorService executor = Gin.Workers.cached(2);
+            gin.setExecutor(executor);
+            int port = start(gin);
+            try (Socket a = parked(port, executor); Socket b = parked(port, executor)) {
+                for (int i = 0; i < 3; i++) {
+                    idle(executor);
+                    assertEquals("HTTP/1.1 200 OK", status(request(port, "GET", "/")));
+                }
+                // and the parked connections are served again
+                idle(executor);
+                send(a, get("/"));
+                assertEquals("HTTP/1.1 200 OK", status(next(a)));
+                idle(executor);
+                send(b, get("/"));
+                assertEquals("HTTP/1.1 200 OK", status(next(b)));
+            } finally {
+                gin.stop();
+                executor.shutdown();
+            }
+        }
+    }
+
+    // with caller runs the accept thread answers one request and closes, so it gets back to accepting
+    static void testCallerRunsServesOneRequest() throws Exception {
+        Gin gin = server(false);
+        ExecutorService rejecting = Gin.Workers.cached(1);
+        rejecting.shutdown();
+        gin.setExecutor(rejecting);
+        gin.setRejectionPolicy(Gin.RejectionPolicies.callerRuns);
+        int port = start(gin);
+        try (Socket socket = connect(port)) {
+            send(socket, get("/") + get("/"));
+            String response = next(socket);
+            assertEquals("n1", body(response));
+            assertTrue(response.contains("Connection: close"), response);
+            assertTrue(closed(socket), "closed after one request");
+        } finally {
+            gin.stop();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class MultipartLimitsTest extends Tests {
+
+    static String upload(String path, byte[] body) {
+        return "POST " + path + " HTTP/1.1\r\nHost: x\r\nContent-Type: multipart/form-data; boundary=" + MultipartReaderTest.boundary
+            + "\r\nContent-Length: " + body.length + "\r\n\r\n" + new String(body, StandardCharsets.ISO_8859_1);
+    }
+
+    static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    static Gin server(Gin.MultipartConfig config) throws Exception {
+        Gin gin = server();
+        gin.setMultipartConfig(config);
+        gin.post("/upload", c -> {
+            StringBuilder sb = new StringBuilder();
+            for (Gin.Request.MultipartFormField f : c.request.parseMultipartForm()) {
+                sb.append(f.name).append('=').append(f.length).append(f.inMemory() ? ",memory" : ",file");
+                if (f.value != null) {
+                    sb.append(',').append(f.value);
+                }
+                sb.append(';');
+            }
+            c.string(200, sb.toString());
+        });
+        return gin;
+    }
+
+    static void testSmallPartsStayInMemoryLargeOnesSpill() throws Exception {
+        Gin.MultipartConfig config = new Gin.MultipartConfig(1024, 1 << 20, 4 << 20, 8 << 20);
+        Gin gin = server(config);
+        int port = start(gin);
+        try {
+            String response = exchange(port, upload("/upload", MultipartReaderTest.form("a", null, "v", "f", "f.bin", repeat('x', 5000))));
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            assertTrue(response.endsWith("a=1,memory,v;f=5000,file;"), response);
+            eventually(() -> assertEquals(0, config.inFlight()));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testPartTooLarge() throws Exception {
+        Gin.MultipartConfig config = new Gin.MultipartConfig(1024, 2000, 4 << 20, 8 << 20);
+        Gin gin = server(config);
+        int port = start(gin);
+        try {
+            String response = exchange(port, upload("/upload", MultipartReaderTest.form("f", "f.bin", repeat('x', 2001))));
+            assertTrue(response.startsWith("HTTP/1.1 413"), response);
+            eventually(() -> assertEquals(0, config.inFlight()));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testRequestTooLarge() throws Exception {
+        Gin.MultipartConfig config = new Gin.MultipartConfig(1024, 1 << 20, 3000, 8 << 20);
+        Gin gin = server(config);
+        int port = start(gin);
+        try {
+            // each part is within the limit, together they are not
+            String response = exchange(port, upload("/upload", MultipartReaderTest.form("a", null, repeat('a', 1000), "b", null, repeat('b', 1000))));
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            response = exchange(port, upload("/upload", MultipartReaderTest.form("a", null, repeat('a', 2000), "b", null, repeat('b', 2000))));
+            assertTrue(response.startsWith("HTTP/1.1 413"), response);
+            // rejected by Content-Length before reading
+            response = exchange(port, upload("/upload", MultipartReaderTest.form("a", null, repeat('a', 4000))));
+            assertTrue(response.startsWith("HTTP/1.1 413"), response);
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testInFlightBudget() throws Exception {
+        Gin.MultipartConfig config = new Gin.MultipartConfig(1024, 1 << 20, 4 << 20, 100);
+        assertTrue(config.reserve(60), "first reservation fits");
+        assertTrue(!config.reserve(60), "second reservation exceeds the budget");
+        assertEquals(60, config.inFlight());
+        config.release(60);
+        assertEquals(0, config.inFlight());
+
+        Gin gin = server(config);
+        int port = start(gin);
+        try {
+            String response = exchange(port, upload("/upload", MultipartReaderTest.form("f", "f.bin", repeat('x', 200))));
+            assertTrue(response.startsWith("HTTP/1.1 413"), response);
+            eventually(() -> assertEquals(0, config.inFlight()));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testMemoryThresholdLimit() {
+        assertThrows(IllegalArgumentException.class, () -> new Gin.MultipartConfig(Integer.MAX_VALUE, 1, 1, 1));
+    }
+
+    static void testHttpExceptionStatus() {
+        Gin.HttpException e = new Gin.HttpException(Gin.Status.payloadTooLarge, "too big");
+        assertEquals(413, e.status);
+        assertEquals("too big", e.getMessage());
+    }
+}
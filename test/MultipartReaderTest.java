@@ -0,0 +1,116 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class MultipartReaderTest extends Tests {
+    static final String boundary = "----WebKitFormBoundary1FcV3vleeUX7Akxe";
+
+    static byte[] form(String... nameFilenameContent) {
+        StringBuilder sb = new StringBuilder("preamble is ignored\r\n");
+        for (int i = 0; i < nameFilenameContent.length; i += 3) {
+            sb.append("--").append(boundary).append("\r\n");
+            sb.append("Content-Disposition: form-data; name=\"").append(nameFilenameContent[i]).append('"');
+            if (nameFilenameContent[i + 1] != null) {
+                sb.append("; filename=\"").append(nameFilenameContent[i + 1]).append("\"\r\nContent-Type: text/plain");
+            }
+            sb.append("\r\n\r\n").append(nameFilenameContent[i + 2]).append("\r\n");
+        }
+        sb.append("--").append(boundary).append("--\r\nepilogue");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // hands out at most n bytes per read
+    static InputStream trickle(byte[] b, int n) {
+        return new ByteArrayInputStream(b) {
+            @Override
+            public synchronized int read(byte[] buf, int off, int len) {
+                return super.read(buf, off, Math.min(len, n));
+            }
+        };
+    }
+
+    static void testParts() throws Exception {
+        Gin.Request.MultipartReader reader = new Gin.Request.MultipartReader(
+            new ByteArrayInputStream(form("username", null, "健康减肥", "file", "a.txt", "qwe\r\nsdwefr\r\n===\r\n")), boundary);
+        Gin.Request.MultipartReader.Part part = reader.next();
+        assertEquals("username", part.name);
+        assertNull(part.filename);
+        assertEquals("健康减肥", part.text());
+        part = reader.next();
+        assertEquals("file", part.name);
+        assertEquals("a.txt", part.filename);
+        assertEquals("text/plain", part.contentType);
+        assertEquals("qwe\r\nsdwefr\r\n===\r\n", part.text());
+        assertNull(reader.next());
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    // content that looks like the start of a delimiter must not end the part
+    static void testNearMatchesStayInContent() throws Exception {
+        String content = "\r\n--" + boundary.substring(0, boundary.length() - 1) + "X\r\n-\r\n--\r\n" + boundary;
+        Gin.Request.MultipartReader reader = new Gin.Request.MultipartReader(new ByteArrayInputStream(form("f", null, content)), boundary);
+        assertEquals(content, reader.next().text());
+        assertNull(reader.next());
+    }
+
+    static void testEmptyPart() throws Exception {
+        Gin.Request.MultipartReader reader = new Gin.Request.MultipartReader(new ByteArrayInputStream(form("a", null, "", "b", null, "2")), boundary);
+        assertEquals("", reader.next().text());
+        assertEquals("2", reader.next().text());
+        assertNull(reader.next());
+    }
+
+    // the delimiter is split across reads at every possible offset
+    static void testSmallReads() throws Exception {
+        byte[] body = form("a", null, "first value", "b", "b.bin", "second");
+        for (int n = 1; n < 12; n++) {
+            Gin.Request.MultipartReader reader = new Gin.Request.MultipartReader(trickle(body, n), boundary);
+            assertEquals("first value", reader.next().text());
+            assertEquals("second", reader.next().text());
+            assertNull(reader.next());
+            reader.close();
+        }
+    }
+
+    // parts larger than the reader's buffer are streamed through it
+    static void testLargePart() throws Exception {
+        byte[] content = new byte[300_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) "-\r\nab".charAt(i % 5);
+        }
+        String s = new String(content, StandardCharsets.ISO_8859_1);
+        byte[] body = form("big", "big.bin", s, "after", null, "x");
+        Gin.Request.MultipartReader reader = new Gin.Request.MultipartReader(trickle(body, 7000), boundary);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(content.length, reader.next().transferTo(out));
+        assertTrue(Arrays.equals(content, out.toByteArray()), "large part content differs");
+        assertEquals("x", reader.next().text());
+        assertNull(reader.next());
+    }
+
+    // unread parts are skipped by next()
+    static void testSkipUnreadPart() throws Exception {
+        Gin.Request.MultipartReader reader = new Gin.Request.MultipartReader(new ByteArrayInputStream(form("a", null, "skipped", "b", null, "read")), boundary);
+        Gin.Request.MultipartReader.Part part = reader.next();
+        assertEquals('s', part.stream().read());
+        assertEquals("read", reader.next().text());
+    }
+
+    static void testMissingClosingBoundary() {
+        byte[] body = ("--" + boundary + "\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nno end").getBytes(StandardCharsets.ISO_8859_1);
+        assertThrows(EOFException.class, () -> {
+            Gin.Request.MultipartReader reader = new Gin.Request.MultipartReader(new ByteArrayInputStream(body), boundary);
+            reader.next().text();
+        });
+    }
+
+    static void testBoundaryTooLong() {
+        char[] c = new char[300];
+        Arrays.fill(c, 'b');
+        assertThrows(IllegalArgumentException.class, () -> new Gin.Request.MultipartReader(new ByteArrayInputStream(new byte[0]), new String(c)));
+    }
+}
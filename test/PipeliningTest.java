@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PipeliningTest extends Tests {
+
+    static String get(String path) {
+        return "GET " + path + " HTTP/1.1\r\nHost: x\r\n\r\n";
+    }
+
+    static String bodies(String responses) {
+        StringBuilder sb = new StringBuilder();
+        for (String response : responses.split("HTTP/1.1 ")) {
+            if (!response.isEmpty()) {
+                sb.append(body(response)).append(' ');
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    // the first handler only finishes once the last one ran, the responses still come in request order
+    static void testResponsesInRequestOrder() throws Exception {
+        CountDownLatch lastRan = new CountDownLatch(1);
+        Gin gin = server();
+        gin.setPipelineDepth(4);
+        gin.get("/slow", c -> c.string(200, lastRan.await(2, TimeUnit.SECONDS) ? "slow" : "alone"));
+        gin.get("/fast", c -> c.string(200, "fast"));
+        gin.get("/last", c -> {
+            lastRan.countDown();
+            c.string(200, "last");
+        });
+        int port = start(gin);
+        try {
+            String responses = exchange(port, get("/slow") + get("/fast") + get("/fast") + get("/last"));
+            assertEquals("slow fast fast last", bodies(responses));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // pipelined requests past the connection's last one are not run, their responses could not be sent
+    static void testBatchStopsAtMaxRequests() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        Gin gin = server();
+        gin.setPipelineDepth(4);
+        gin.setMaxRequestsPerConnection(2);
+        gin.get("/", c -> c.string(200, "r" + runs.incrementAndGet()));
+        int port = start(gin);
+        try {
+            String responses = exchange(port, get("/") + get("/") + get("/") + get("/"));
+            assertEquals(2, count(responses, "HTTP/1.1 200 OK"));
+            assertTrue(responses.contains("Connection: close"), responses);
+            Thread.sleep(100);
+            assertEquals(2, runs.get());
+        } finally {
+            gin.stop();
+        }
+    }
+
+    // a request that is not safe to run concurrently waits until the ones before it are answered
+    static void testUnsafeTrailingRequest() throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Gin gin = server();
+        gin.setPipelineDepth(4);
+        gin.get("/a", c -> {
+            Thread.sleep(100);
+            order.add("a");
+            c.string(200, "a");
+        });
+        gin.get("/b", c -> {
+            order.add("b");
+            c.string(200, "b");
+        });
+        gin.post("/p", c -> {
+            order.add("p");
+            c.string(200, "p");
+        });
+        int port = start(gin);
+        try {
+            String responses = exchange(port, get("/a") + get("/b") + "POST /p HTTP/1.1\r\nHost: x\r\nContent-Length: 0\r\n\r\n"
+                + get("/b"));
+            assertEquals("a b p b", bodies(responses));
+            assertEquals("p", order.get(2));
+        } finally {
+            gin.stop();
+        }
+    }
+}
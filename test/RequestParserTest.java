@@ -0,0 +1,81 @@
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+
+public class RequestParserTest extends Tests {
+
+    static Gin.ConnectionInput input(String s) {
+        return new Gin.ConnectionInput(new ByteArrayInputStream(ascii(s)));
+    }
+
+    static void testRequestLineAndHeaders() throws Exception {
+        Gin.Request req = Gin.RequestParser.parse(input("GET /a?b=1 HTTP/1.1\r\nHost: x\r\nX-Custom:  v w \t\r\n\r\n"));
+        assertEquals("GET", req.method);
+        assertEquals("/a?b=1", req.requestURI);
+        assertEquals(Gin.Protocol.HTTP_1_1, req.proto);
+        assertEquals("x", req.headers.get("host"));
+        assertEquals("v w", req.headers.get("x-custom"));
+        assertEquals(2, req.headers.size());
+    }
+
+    // no header lines at all, the request line is directly followed by the empty line
+    static void testRequestWithoutHeaders() throws Exception {
+        Gin.Request req = Gin.RequestParser.parse(input("GET / HTTP/1.0\r\n\r\n"));
+        assertEquals("GET", req.method);
+        assertEquals("/", req.requestURI);
+        assertEquals("HTTP/1.0", req.proto);
+        assertEquals(0, req.headers.size());
+        assertNull(req.headers.get(Gin.Headers.host));
+    }
+
+    static void testHeaderNamesAreCaseInsensitive() throws Exception {
+        Gin.Request req = Gin.RequestParser.parse(input("GET / HTTP/1.1\r\ncontent-TYPE: text/plain\r\nX-A: 1\r\nx-a: 2\r\n\r\n"));
+        assertEquals("text/plain", req.headers.get(Gin.Headers.contentType));
+        assertEquals("text/plain", req.headers.get("CONTENT-TYPE"));
+        assertEquals(java.util.Arrays.asList("1", "2"), req.headers.getAll("X-A"));
+    }
+
+    static void testLeadingEmptyLinesAreSkipped() throws Exception {
+        Gin.Request req = Gin.RequestParser.parse(input("\r\n\r\nPOST /p HTTP/1.1\r\nHost: x\r\n\r\n"));
+        assertEquals("POST", req.method);
+        assertEquals("/p", req.requestURI);
+    }
+
+    // pipelined heads are parsed one after another from the same buffer
+    static void testPipelinedHeads() throws Exception {
+        Gin.ConnectionInput in = input("GET /1 HTTP/1.1\r\nHost: x\r\n\r\nGET /2 HTTP/1.1\r\n\r\n");
+        assertEquals("/1", Gin.RequestParser.parse(in).requestURI);
+        assertEquals("/2", Gin.RequestParser.parse(in).requestURI);
+        assertThrows(EOFException.class, () -> Gin.RequestParser.parse(in));
+    }
+
+    // the head arrives one byte per read
+    static void testHeadSplitAcrossReads() throws Exception {
+        byte[] head = ascii("GET /slow HTTP/1.1\r\nHost: x\r\n\r\n");
+        InputStream trickle = new ByteArrayInputStream(head) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        Gin.Request req = Gin.RequestParser.parse(new Gin.ConnectionInput(trickle));
+        assertEquals("/slow", req.requestURI);
+        assertEquals("x", req.headers.get(Gin.Headers.host));
+    }
+
+    static void testInvalidRequests() {
+        assertThrows(Exception.class, () -> Gin.RequestParser.parse(input("BREW /pot HTTP/1.1\r\n\r\n")));
+        assertThrows(Exception.class, () -> Gin.RequestParser.parse(input("GET\r\n\r\n")));
+        assertThrows(EOFException.class, () -> Gin.RequestParser.parse(input("GET / HTTP/1.1\r\nHost")));
+    }
+
+    static void testHeadTooLarge() {
+        StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (sb.length() <= Gin.RequestParser.maxHeadSize) {
+            sb.append("X-Filler: 0123456789012345678901234567890123456789\r\n");
+        }
+        sb.append("\r\n");
+        Exception e = assertThrows(Exception.class, () -> Gin.RequestParser.parse(input(sb.toString())));
+        assertTrue(e.getMessage().contains("exceeds"), e.getMessage());
+    }
+}
@@ -0,0 +1,113 @@
+public class RouterTest extends Tests {
+
+    static Gin routes() throws Exception {
+        Gin gin = server();
+        gin.get("/", c -> c.string(200, "root"));
+        gin.get("/user/new", c -> c.string(200, "new"));
+        gin.get("/user/:id", c -> c.string(200, "user " + c.param("id")));
+        gin.get("/user/:id/files/*path", c -> c.string(200, "files " + c.param("id") + " " + c.param("path")));
+        gin.get("/users", c -> c.string(200, "users"));
+        gin.post("/user/:id", c -> c.string(200, "post " + c.param("id")));
+        gin.get("/search", c -> c.string(200, "search " + c.request.query("q")));
+        gin.getMultiple("/static/", c -> c.string(200, "static " + c.requestURI()));
+        gin.getMultiple("/static/deep/", c -> c.string(200, "deep"));
+        return gin;
+    }
+
+    static void testStaticParamAndWildcard() throws Exception {
+        Gin gin = routes();
+        int port = start(gin);
+        try {
+            assertEquals("root", body(request(port, "GET", "/")));
+            // the static child wins over the parameter
+            assertEquals("new", body(request(port, "GET", "/user/new")));
+            assertEquals("user 42", body(request(port, "GET", "/user/42")));
+            assertEquals("users", body(request(port, "GET", "/users")));
+            assertEquals("files 7 a/b/c.txt", body(request(port, "GET", "/user/7/files/a/b/c.txt")));
+            assertEquals("post 9", body(request(port, "POST", "/user/9")));
+            assertEquals("search x y", body(request(port, "GET", "/search?q=x%20y")));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testPrefixRoutes() throws Exception {
+        Gin gin = routes();
+        int port = start(gin);
+        try {
+            assertEquals("static /static/a/b.css", body(request(port, "GET", "/static/a/b.css")));
+            // the longest prefix wins
+            assertEquals("deep", body(request(port, "GET", "/static/deep/x")));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testNotFoundAndMethodNotAllowed() throws Exception {
+        Gin gin = routes();
+        int port = start(gin);
+        try {
+            assertEquals("HTTP/1.1 404 Not Found", status(request(port, "GET", "/nothing")));
+            assertEquals("HTTP/1.1 404 Not Found", status(request(port, "GET", "/user/1/other")));
+            assertEquals("HTTP/1.1 404 Not Found", status(request(port, "GET", "/use")));
+            String response = request(port, "DELETE", "/user/1");
+            assertEquals("HTTP/1.1 405 Method Not Allowed", status(response));
+            assertTrue(response.contains("Allow: GET, POST, HEAD, OPTIONS"), response);
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testInvalidRoutes() throws Exception {
+        Gin gin = routes();
+        assertThrows(IllegalArgumentException.class, () -> gin.get("/user/:other/x", c -> c.string(200, "")));
+        assertThrows(IllegalArgumentException.class, () -> gin.get("/bad/:", c -> c.string(200, "")));
+        assertThrows(IllegalArgumentException.class, () -> gin.handleFunc("BREW", "/pot", c -> c.string(200, "")));
+        assertThrows(IllegalArgumentException.class, () -> gin.get("/empty"));
+    }
+
+    static void testRoutesChangeWhileServing() throws Exception {
+        Gin gin = routes();
+        int port = start(gin);
+        try {
+            assertTrue(gin.removeFunc("GET", "/user/new"), "route removed");
+            assertTrue(!gin.removeFunc("GET", "/user/new"), "route already removed");
+            assertEquals("user new", body(request(port, "GET", "/user/new")));
+            gin.get("/late", c -> c.string(200, "late"));
+            assertEquals("late", body(request(port, "GET", "/late")));
+        } finally {
+            gin.stop();
+        }
+    }
+
+    static void testMiddlewareChain() throws Exception {
+        Gin gin = routes();
+        StringBuilder order = new StringBuilder();
+        gin.use(c -> {
+            order.append("global,");
+            c.next();
+            order.append("after");
+        });
+        Gin.Group admin = gin.group("/admin", c -> {
+            order.append("group,");
+            if (!"secret".equals(c.request.query("k"))) {
+                c.forbidden();
+                c.abort();
+            }
+        });
+        admin.get("/panel", c -> {
+            order.append("handler,");
+            c.string(200, "panel");
+        });
+        int port = start(gin);
+        try {
+            assertEquals("panel", body(request(port, "GET", "/admin/panel?k=secret")));
+            assertEquals("global,group,handler,after", order.toString());
+            order.setLength(0);
+            assertEquals("HTTP/1.1 403 Forbidden", status(request(port, "GET", "/admin/panel")));
+            assertEquals("global,group,after", order.toString());
+        } finally {
+            gin.stop();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A small runner and the assertions the tests use, the project is built without a build tool or test framework.
+ * Every static method whose name starts with "test" of the classes listed in main is run, failures are printed
+ * and make the exit status non-zero.
+ * <pre>
+ * javac -encoding UTF-8 -cp android.jar -d out src/Gin.java test/*.java &amp;&amp; java -cp out:android.jar Tests
+ * </pre>
+ */
+public class Tests {
+    private static int passed = 0;
+    private static int failed = 0;
+
+    public static void main(String[] args) {
+        run(EventLoopTest.class);
+        run(KeepAliveTest.class);
+        run(PipeliningTest.class);
+        run(RequestParserTest.class);
+        run(BodyInputStreamTest.class);
+        run(MultipartReaderTest.class);
+        run(MultipartLimitsTest.class);
+        run(BufferPoolTest.class);
+        run(RouterTest.class);
+        run(HeadEncoderTest.class);
+        run(FileServingTest.class);
+        run(FileCacheTest.class);
+        run(ConditionalTest.class);
+        run(CompressionTest.class);
+        run(HeadOptionsTest.class);
+        run(HtmlWriterTest.class);
+        run(DSLTest.class);
+        System.out.println(passed + " passed, " + failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    static void run(Class<?> c) {
+        Method[] methods = c.getDeclaredMethods();
+        Arrays.sort(methods, (a, b) -> a.getName().compareTo(b.getName()));
+        for (Method m : methods) {
+            if (!m.getName().startsWith("test") || !Modifier.isStatic(m.getModifiers()) || m.getParameterCount() != 0) {
+                continue;
+            }
+            try {
+                m.setAccessible(true);
+                m.invoke(null);
+                passed++;
+            } catch (InvocationTargetException e) {
+                failed++;
+                System.out.println("FAIL " + c.getSimpleName() + "." + m.getName());
+                e.getCause().printStackTrace(System.out);
+            } catch (IllegalAccessException e) {
+                failed++;
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+
+    public interface Block {
+        void run() throws Exception;
+    }
+
+    static void assertEquals(Object expected, Object actual) {
+        if (!Objects.deepEquals(expected, actual)) {
+            throw new AssertionError("expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    static void assertEquals(long expected, long actual) {
+        if (expected != actual) {
+            throw new AssertionError("expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void assertNull(Object actual) {
+        if (actual != null) {
+            throw new AssertionError("expected null but was <" + actual + ">");
+        }
+    }
+
+    static <T extends Throwable> T assertThrows(Class<T> type, Block block) {
+        try {
+            block.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) {
+                return type.cast(e);
+            }
+            throw new AssertionError("expected " + type.getSimpleName() + " but got " + e, e);
+        }
+        throw new AssertionError("expected " + type.getSimpleName() + " but nothing was thrown");
+    }
+
+    // retries the assertion for a second, for state the server updates after the response is sent
+    static void eventually(Block assertion) throws Exception {
+        for (int i = 0; ; i++) {
+            try {
+                assertion.run();
+                return;
+            } catch (AssertionError e) {
+                if (i == 50) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    static Gin server() throws IOException {
+        return new Gin(Files.createTempDirectory("gin").toString());
+    }
+
+    // starts the server on a free port and waits until it accepts connections
+    static int start(Gin gin) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        gin.listen(port);
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return port;
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+        throw new IOException("server did not start on " + port);
+    }
+
+    // sends the raw request bytes and returns everything read until the server closes or stays quiet for a while
+    static String exchange(int port, String request) throws IOException {
+        return new String(exchangeBytes(port, ascii(request)), StandardCharsets.ISO_8859_1);
+    }
+
+    // one request on its own connection, the response is complete when the server closes it
+    static String request(int port, String method, String path, String... headers) throws IOException {
+        StringBuilder sb = new StringBuilder(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: x\r\nConnection: close\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        return exchange(port, sb.append("\r\n").toString());
+    }
+
+    static String body(String response) {
+        int i = response.indexOf("\r\n\r\n");
+        return i < 0 ? "" : response.substring(i + 4);
+    }
+
+    static String status(String response) {
+        int i = response.indexOf("\r\n");
+        return i < 0 ? response : response.substring(0, i);
+    }
+
+    static byte[] exchangeBytes(int port, byte[] request) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(500);
+            OutputStream out = socket.getOutputStream();
+            out.write(request);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            try {
+                int n;
+                while ((n = in.read(b)) > 0) {
+                    response.write(b, 0, n);
+                }
+            } catch (SocketTimeoutException e) {
+                // kept alive, the response is complete
+            }
+            return response.toByteArray();
+        }
+    }
+
+    static int count(String s, String part) {
+        int n = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + part.length())) {
+            n++;
+        }
+        return n;
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}